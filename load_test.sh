@@ -0,0 +1,53 @@
+#!/bin/bash
+# Test obciążeniowy proxy: porównanie trybów executora (cached / bounded / virtual)
+# Użycie: ./load_test.sh [wątki_klienta] [zapytania_na_wątek]
+
+G='\033[1;32m'; R='\033[0;31m'; Y='\033[1;33m'; C='\033[1;36m'; NC='\033[0m'
+
+THREADS=${1:-200}
+REQUESTS=${2:-50}
+
+cleanup() { kill $(jobs -p) 2>/dev/null; echo -e "\n${G}System zatrzymany.${NC}"; }
+trap cleanup EXIT
+
+echo -e "${Y}>>> SKJ PROJEKT - TEST OBCIĄŻENIOWY <<<${NC}\n"
+
+echo -ne "Kompilacja... "
+pkill -f "java.*(Proxy|Server)" 2>/dev/null
+rm -rf out logs; mkdir -p out logs
+find src -name "*.java" > s.txt; javac -d out @s.txt; rm s.txt
+[ $? -eq 0 ] && echo -e "${G}OK${NC}" || { echo -e "${R}BŁĄD${NC}"; exit 1; }
+
+java -cp out TCPServer -port 9021 -key T_Lalka -value 25 > logs/t1.log 2>&1 &
+java -cp out UDPServer -port 9024 -key U_Auto  -value 15 > logs/u1.log 2>&1 &
+sleep 1
+
+# najwyższa liczba wątków procesu w trakcie testu
+watch_threads() {
+    local pid=$1 max=0 n
+    while kill -0 $pid 2>/dev/null; do
+        n=$(awk '/^Threads:/ {print $2}' /proc/$pid/status 2>/dev/null)
+        [ -n "$n" ] && [ "$n" -gt "$max" ] && max=$n
+        echo $max > logs/threads_$pid
+        sleep 0.2
+    done
+}
+
+for MODE in cached bounded virtual; do
+    echo -e "\n${C}--- EXECUTOR: $MODE ---${NC}"
+    java -cp out Proxy -port 8020 -executor $MODE -maxThreads 64 -queue 256 \
+        -server localhost 9021 -server localhost 9024 > logs/proxy_$MODE.log 2>&1 &
+    PROXY=$!
+    sleep 2
+    watch_threads $PROXY &
+
+    echo "TCP:"
+    java -cp out LoadGenerator -address localhost -port 8020 -protocol tcp \
+        -threads $THREADS -requests $REQUESTS -command GET VALUE T_Lalka | tail -3
+    echo "UDP:"
+    java -cp out LoadGenerator -address localhost -port 8020 -protocol udp \
+        -threads $THREADS -requests $REQUESTS -command GET VALUE U_Auto | tail -3
+
+    echo "Maks. wątków proxy: $(cat logs/threads_$PROXY 2>/dev/null)"
+    kill $PROXY 2>/dev/null; wait $PROXY 2>/dev/null
+done
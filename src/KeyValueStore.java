@@ -0,0 +1,203 @@
+import java.io.*;
+import java.util.*;
+import java.util.function.*;
+
+/*
+ * Key/value store shared by TCPServer and UDPServer.
+ * Keys are split into stripes by hash, each stripe is an open addressing
+ * table with primitive long values guarded by its own lock, so requests
+ * for different keys rarely wait for each other.
+ */
+public class KeyValueStore {
+	private static final int STRIPES = 64;
+
+	private final Stripe[] stripes;
+
+	public KeyValueStore() {
+		stripes = new Stripe[STRIPES];
+		for(int i=0; i<STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/*
+	 * Sets the value, an unknown key is created.
+	 */
+	public void put(String key, long value) {
+		stripeFor(key).put(key, value);
+	}
+
+	public boolean has(String key) {
+		return stripeFor(key).indexOf(key) >= 0;
+	}
+
+	/*
+	 * Value of the key, or 0 when the key does not exist - check has() first.
+	 */
+	public long get(String key) {
+		return stripeFor(key).get(key);
+	}
+
+	public int size() {
+		int size = 0;
+		for(Stripe stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	public interface EntryConsumer {
+		void accept(String key, long value) throws IOException;
+	}
+
+	/*
+	 * Visits every entry, each stripe is copied under its lock first.
+	 */
+	public void forEachEntry(EntryConsumer action) throws IOException {
+		for(Stripe stripe : stripes) {
+			List<String> keys = new ArrayList<>();
+			long[] values = stripe.entries(keys);
+			for(int i=0; i<keys.size(); i++) {
+				action.accept(keys.get(i), values[i]);
+			}
+		}
+	}
+
+	public void forEachKey(Consumer<String> action) {
+		for(Stripe stripe : stripes) {
+			for(String key : stripe.keys()) {
+				action.accept(key);
+			}
+		}
+	}
+
+	/*
+	 * Writes the GET NAMES response ("OK n k1 k2 ...") key by key, without
+	 * building the response string first. The stripes are copied before the
+	 * count is written, so keys created meanwhile can't make it disagree.
+	 */
+	public void writeNames(Appendable out) throws IOException {
+		List<List<String>> parts = new ArrayList<>(STRIPES);
+		int count = 0;
+		for(Stripe stripe : stripes) {
+			List<String> keys = stripe.keys();
+			parts.add(keys);
+			count += keys.size();
+		}
+		out.append("OK ").append(Integer.toString(count));
+		for(List<String> keys : parts) {
+			for(String key : keys) {
+				out.append(' ').append(key);
+			}
+		}
+	}
+
+	/*
+	 * Loads "name value" lines from a file, empty lines and # comments are skipped.
+	 */
+	public void load(String fileName) throws IOException {
+		try(BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] parts = line.split("\\s+");
+				put(parts[0], parts.length > 1 ? Long.parseLong(parts[1]) : 0);
+			}
+		}
+	}
+
+	private Stripe stripeFor(String key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	private static class Stripe {
+		private String[] keys = new String[16];
+		private long[] values = new long[16];
+		private int size;
+
+		synchronized int size() {
+			return size;
+		}
+
+		synchronized long get(String key) {
+			int i = indexOf(key);
+			return i >= 0 ? values[i] : 0;
+		}
+
+		synchronized void put(String key, long value) {
+			int i = indexOf(key);
+			if(i >= 0) {
+				values[i] = value;
+				return;
+			}
+			if((size + 1) * 2 > keys.length) {
+				resize();
+			}
+			i = slot(key, keys.length);
+			while(keys[i] != null) {
+				i = (i + 1) & (keys.length - 1);
+			}
+			keys[i] = key;
+			values[i] = value;
+			size++;
+		}
+
+		synchronized int indexOf(String key) {
+			int i = slot(key, keys.length);
+			while(keys[i] != null) {
+				if(keys[i].equals(key)) {
+					return i;
+				}
+				i = (i + 1) & (keys.length - 1);
+			}
+			return -1;
+		}
+
+		synchronized long[] entries(List<String> keysOut) {
+			long[] result = new long[size];
+			for(int i=0; i<keys.length; i++) {
+				if(keys[i] != null) {
+					result[keysOut.size()] = values[i];
+					keysOut.add(keys[i]);
+				}
+			}
+			return result;
+		}
+
+		synchronized List<String> keys() {
+			List<String> result = new ArrayList<>(size);
+			for(String key : keys) {
+				if(key != null) {
+					result.add(key);
+				}
+			}
+			return result;
+		}
+
+		private void resize() {
+			String[] oldKeys = keys;
+			long[] oldValues = values;
+			keys = new String[oldKeys.length * 2];
+			values = new long[oldKeys.length * 2];
+			for(int j=0; j<oldKeys.length; j++) {
+				if(oldKeys[j] != null) {
+					int i = slot(oldKeys[j], keys.length);
+					while(keys[i] != null) {
+						i = (i + 1) & (keys.length - 1);
+					}
+					keys[i] = oldKeys[j];
+					values[i] = oldValues[j];
+				}
+			}
+		}
+
+		private static int slot(String key, int length) {
+			int h = key.hashCode() * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & (length - 1);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class LoadGenerator {
+	public static void main(String[] args) {
+
+		InetAddress address = null;
+		int port = 0;
+		String protocol = "tcp";
+		int threads = 10;
+		int requests = 100;
+		String command = "";
+
+		for(int i=0; i<args.length;) {
+			switch(args[i]) {
+				case "-address":
+					try {
+						address = InetAddress.getByName(args[i+1]);
+					} catch (UnknownHostException e) {
+						System.err.println("Unknown host: " + args[i+1]);
+					}
+					i += 2;
+					break;
+				case "-port":
+					port = Integer.parseInt(args[i+1]);
+					i += 2;
+					break;
+				case "-protocol":
+					protocol = args[i+1].toLowerCase();
+					i += 2;
+					break;
+				case "-threads":
+					threads = Integer.parseInt(args[i+1]);
+					i += 2;
+					break;
+				case "-requests":
+					requests = Integer.parseInt(args[i+1]);
+					i += 2;
+					break;
+				case "-command":
+					// the rest of the arguments is the command, e.g. -command GET VALUE T_Lalka
+					i++;
+					StringBuilder sb = new StringBuilder();
+					while(i < args.length) {
+						if(sb.length() > 0) sb.append(' ');
+						sb.append(args[i++]);
+					}
+					command = sb.toString();
+					break;
+				default:
+					System.err.println("Unknown parameter: " + args[i]);
+					i++;
+			}
+		}
+
+		if(address == null || port == 0 || command.equals("") || threads < 1 || requests < 1) {
+			System.err.println("Incorrect execution syntax");
+			System.err.println("java LoadGenerator -address <host> -port <port> [-protocol tcp|udp] [-threads n] [-requests n] -command <command>");
+			System.exit(1);
+		}
+
+		final InetAddress target = address;
+		final int targetPort = port;
+		final boolean udp = protocol.equals("udp");
+		final int perThread = requests;
+		final String request = command;
+
+		long[][] latencies = new long[threads][];
+		AtomicInteger errors = new AtomicInteger();
+		Thread[] workers = new Thread[threads];
+
+		System.out.println("Sending " + (threads * (long) requests) + " x '" + command + "' over " + protocol.toUpperCase()
+			+ " from " + threads + " threads");
+
+		long start = System.nanoTime();
+		for(int t = 0; t < threads; t++) {
+			final int id = t;
+			workers[t] = new Thread(() -> {
+				latencies[id] = udp
+					? runUDP(target, targetPort, request, perThread, errors)
+					: runTCP(target, targetPort, request, perThread, errors);
+			});
+			workers[t].start();
+		}
+		for(Thread worker : workers) {
+			try {
+				worker.join();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		int count = 0;
+		for(long[] l : latencies) count += l.length;
+		long[] all = new long[count];
+		int pos = 0;
+		for(long[] l : latencies) {
+			System.arraycopy(l, 0, all, pos, l.length);
+			pos += l.length;
+		}
+		Arrays.sort(all);
+
+		double seconds = elapsed / 1e9;
+		System.out.printf("Requests: %d ok, %d errors in %.2f s%n", count, errors.get(), seconds);
+		System.out.printf("Throughput: %.0f req/s%n", count / seconds);
+		if(count > 0) {
+			System.out.printf("Latency ms: p50=%.2f p99=%.2f p99.9=%.2f max=%.2f%n",
+				percentile(all, 0.50), percentile(all, 0.99), percentile(all, 0.999), all[count - 1] / 1e6);
+		}
+	}
+
+	// One persistent connection per thread, one request at a time
+	private static long[] runTCP(InetAddress address, int port, String command, int requests, AtomicInteger errors) {
+		long[] latencies = new long[requests];
+		int done = 0;
+		Socket socket = null;
+		PrintWriter out = null;
+		BufferedReader in = null;
+
+		for(int n = 0; n < requests; n++) {
+			long start = System.nanoTime();
+			try {
+				if(socket == null) {
+					socket = new Socket(address, port);
+					socket.setTcpNoDelay(true);
+					socket.setSoTimeout(5000);
+					out = new PrintWriter(socket.getOutputStream(), true);
+					in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+				}
+				out.println(command);
+				String response = in.readLine();
+				if(response == null || response.startsWith("NA")) {
+					throw new IOException("bad response: " + response);
+				}
+				latencies[done++] = System.nanoTime() - start;
+			} catch(IOException e) {
+				errors.incrementAndGet();
+				closeQuietly(socket);
+				socket = null;
+			}
+		}
+		closeQuietly(socket);
+		return Arrays.copyOf(latencies, done);
+	}
+
+	private static long[] runUDP(InetAddress address, int port, String command, int requests, AtomicInteger errors) {
+		long[] latencies = new long[requests];
+		int done = 0;
+		byte[] data = command.getBytes();
+		byte[] buffer = new byte[65535];
+
+		try(DatagramSocket socket = new DatagramSocket()) {
+			socket.setSoTimeout(2000);
+			DatagramPacket request = new DatagramPacket(data, data.length, address, port);
+			DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+			for(int n = 0; n < requests; n++) {
+				long start = System.nanoTime();
+				try {
+					socket.send(request);
+					response.setLength(buffer.length);
+					socket.receive(response);
+					if(response.getLength() >= 2 && buffer[0] == 'N' && buffer[1] == 'A') {
+						throw new IOException("NA");
+					}
+					latencies[done++] = System.nanoTime() - start;
+				} catch(IOException e) {
+					errors.incrementAndGet();
+				}
+			}
+		} catch(SocketException e) {
+			System.err.println("Error creating socket: " + e);
+		}
+		return Arrays.copyOf(latencies, done);
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+	}
+
+	private static void closeQuietly(Socket socket) {
+		if(socket == null) return;
+		try {
+			socket.close();
+		} catch(IOException e) {
+		}
+	}
+}
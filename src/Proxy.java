@@ -1,20 +1,42 @@
+import cache.ValueCache;
 import command.CommandProcessor;
+import config.ExecutorMode;
+import config.FrontendMode;
 import config.ProxyConfig;
 import discovery.KeyDiscovery;
+import metrics.Metrics;
+import server.AdmissionControl;
+import server.Listener;
+import server.NioTCPListener;
 import server.TCPListener;
 import server.UDPListener;
+import server.WorkerExecutors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 public class Proxy {
     private final ProxyConfig config;
     private final KeyDiscovery keyDiscovery;
     private final CommandProcessor commandProcessor;
-    private TCPListener tcpListener;
+    private Listener tcpListener;
     private UDPListener udpListener;
+    private ExecutorService connectionExecutor;
+    private ExecutorService workerExecutor;
+    private final List<ExecutorService> udpExecutors = new ArrayList<>();
 
     public Proxy(ProxyConfig config) {
         this.config = config;
-        this.keyDiscovery = new KeyDiscovery();
-        this.commandProcessor = new CommandProcessor(keyDiscovery, config.getServers());
+        this.keyDiscovery = new KeyDiscovery(config.getVirtualNodes());
+        ValueCache valueCache = config.getCacheEntries() > 0
+                ? new ValueCache(config.getCacheEntries(), config.getCacheBytes(), config.getCacheTtl())
+                : null;
+        this.commandProcessor = new CommandProcessor(keyDiscovery, config.getServers(), valueCache);
+        if (config.getHedgePercentile() > 0) {
+            commandProcessor.setHedging(config.getHedgePercentile(), config.getHedgeBudget());
+        }
     }
 
 
@@ -53,6 +75,28 @@ public class Proxy {
     private static void printConfiguration(ProxyConfig config) {
         System.out.println("Konfiguracja:");
         System.out.println("  Proxy port: " + config.getProxyPort() + " (TCP + UDP)");
+        System.out.println("  Frontend TCP: " + config.getFrontendMode()
+                + (config.getFrontendMode() == FrontendMode.NIO ? " (" + config.getEventLoops() + " pętli)" : ""));
+        System.out.println("  Executor: " + config.getExecutorMode()
+                + (config.getExecutorMode() == ExecutorMode.BOUNDED
+                ? " (wątki: " + config.getMaxThreads() + ", kolejka: " + config.getQueueSize() + ")" : "")
+                + (config.getExecutorMode() == ExecutorMode.VIRTUAL && !WorkerExecutors.isVirtualSupported()
+                ? " (niedostępne w tej Javie - używam CACHED)" : ""));
+        System.out.println("  Odświeżanie kluczy: " + (config.getRefreshInterval() > 0
+                ? "co ~" + config.getRefreshInterval() + " ms" : "wyłączone"));
+        System.out.println("  Cache wartości: " + (config.getCacheEntries() > 0
+                ? config.getCacheEntries() + " wpisów, TTL " + config.getCacheTtl() + " ms, "
+                + (config.getCacheBytes() / (1024 * 1024)) + " MB"
+                : "wyłączony"));
+        System.out.println("  Pętle odbioru UDP: " + config.getUdpShards());
+        System.out.println("  Wirtualne węzły pierścienia: " + config.getVirtualNodes());
+        System.out.println("  Hedging GET: " + (config.getHedgePercentile() > 0
+                ? "po p" + config.getHedgePercentile() + ", najwyżej " + config.getHedgeBudget() + "% odczytów"
+                : "wyłączony"));
+        System.out.println("  Limit na klienta: " + (config.getRateLimit() > 0
+                ? config.getRateLimit() + " zapytań/s (seria do " + config.getRateBurst() + ")" : "brak"));
+        System.out.println("  Zapytania w toku: " + (config.getMaxConcurrency() > 0
+                ? "limit adaptacyjny, najwyżej " + config.getMaxConcurrency() : "bez limitu"));
         System.out.println("  Servers: " + config.getServers().size());
         for (int i = 0; i < config.getServers().size(); i++) {
             System.out.println("    [" + (i + 1) + "] " +
@@ -64,17 +108,42 @@ public class Proxy {
 
     private static void printUsage() {
         System.err.println("Błąd, Uzywaj tak: java Proxy -port <port> -server <address> <port> ...");
+        System.err.println("  opcjonalnie: -frontend blocking|nio -eventLoops <n>");
+        System.err.println("               -executor cached|bounded|virtual -maxThreads <n> -queue <n>");
+        System.err.println("               -refresh <ms> (0 = bez ponownego odkrywania kluczy)");
+        System.err.println("               -cache <wpisy> -cacheTtl <ms> -cacheMb <n>");
+        System.err.println("               -udpShards <n> (gniazda UDP z SO_REUSEPORT, Linux)");
+        System.err.println("               -vnodes <n> (wirtualne węzły na serwer dla SET nowych kluczy)");
+        System.err.println("               -hedgePercentile <p> (0 = bez hedgingu) -hedgeBudget <procent>");
+        System.err.println("               -rateLimit <zapytań/s na klienta> -rateBurst <n> -maxConcurrency <n> (0 = bez limitu)");
     }
 
     public void start() {
+        long startTime = System.currentTimeMillis();
 
         System.out.println("║          STARTING PROXY            ║");
         System.out.println();
 
         keyDiscovery.discoverKeys(config.getServers());
+        keyDiscovery.startRefresh(config.getServers(), config.getRefreshInterval());
+
+        connectionExecutor = WorkerExecutors.create(
+                config.getExecutorMode(), "TCP-Session", config.getMaxThreads(), config.getQueueSize());
+        workerExecutor = WorkerExecutors.create(
+                config.getExecutorMode(), "Worker", config.getMaxThreads(), config.getQueueSize());
+
+        // wspólna dla TCP i UDP - limit zapytań w toku dotyczy całego proxy
+        AdmissionControl admission = new AdmissionControl(
+                config.getRateLimit(), config.getRateBurst(), config.getMaxConcurrency());
 
         System.out.println("Startujemy TCP na porcie " + config.getProxyPort() + "...");
-        tcpListener = new TCPListener(config.getProxyPort(), commandProcessor);
+        if (config.getFrontendMode() == FrontendMode.NIO) {
+            tcpListener = new NioTCPListener(config.getProxyPort(), commandProcessor,
+                    config.getEventLoops(), workerExecutor, admission);
+        } else {
+            tcpListener = new TCPListener(config.getProxyPort(), commandProcessor,
+                    connectionExecutor, workerExecutor, admission);
+        }
         Thread tcpThread = new Thread(tcpListener, "TCP-Listener");
         tcpThread.start();
 
@@ -85,7 +154,17 @@ public class Proxy {
         }
 
         System.out.println("Startujemy nasłuchiwac UDP na porcie " + config.getProxyPort() + "...");
-        udpListener = new UDPListener(config.getProxyPort(), commandProcessor);
+        if (config.getUdpShards() > 1) {
+            // każda pętla odbioru ma własny executor, żeby nie rywalizowały o jedną kolejkę
+            for (int i = 0; i < config.getUdpShards(); i++) {
+                udpExecutors.add(WorkerExecutors.create(config.getExecutorMode(), "UDP-" + i + "-Worker",
+                        Math.max(1, config.getMaxThreads() / config.getUdpShards()), config.getQueueSize()));
+            }
+            udpListener = new UDPListener(config.getProxyPort(), commandProcessor, udpExecutors, admission);
+        } else {
+            udpListener = new UDPListener(config.getProxyPort(), commandProcessor,
+                    Collections.singletonList(workerExecutor), admission);
+        }
         Thread udpThread = new Thread(udpListener, "UDP-Listener");
         udpThread.start();
 
@@ -99,6 +178,9 @@ public class Proxy {
         System.out.println("      PROXY GOTOWE DO PRACY!         ");
         System.out.println();
         System.out.println(" Gotowy na uzyskanie " + keyDiscovery.getKeyCount() + " kluczy");
+        long startupTime = System.currentTimeMillis() - startTime;
+        Metrics.set("startup.ms", startupTime);
+        System.out.println(" Czas startu: " + startupTime + " ms (discovery: " + Metrics.get("discovery.ms") + " ms)");
         System.out.println();
 
         addShutdownHook();
@@ -119,6 +201,22 @@ public class Proxy {
                 udpListener.stop();
             }
 
+            keyDiscovery.stopRefresh();
+
+            if (connectionExecutor != null) {
+                connectionExecutor.shutdown();
+            }
+            if (workerExecutor != null) {
+                workerExecutor.shutdown();
+            }
+            for (ExecutorService executor : udpExecutors) {
+                executor.shutdown();
+            }
+
+            commandProcessor.close();
+
+            System.out.println("Statystyki: " + Metrics.snapshot());
+
             System.out.println("Proxy Koniec.");
         }));
     }
@@ -0,0 +1,110 @@
+import discovery.HashRing;
+import model.ServerInfo;
+
+import java.util.*;
+
+/*
+ * Benchmark of the consistent hash ring used by the proxy for new keys:
+ * how evenly keys spread over the servers, how many move when a server is
+ * added or removed, and the lookup cost - for several virtual node counts.
+ *
+ * java RingDistribution [-servers n] [-keys n] [-vnodes 1,40,160,...]
+ */
+public class RingDistribution {
+	public static void main(String[] args) {
+		int servers = 5;
+		int keys = 1000000;
+		String vnodes = "1,10,40,160,500";
+
+		for(int i=0; i<args.length;) {
+			switch(args[i]) {
+				case "-servers":
+					servers = Integer.parseInt(args[i+1]);
+					i += 2;
+					break;
+				case "-keys":
+					keys = Integer.parseInt(args[i+1]);
+					i += 2;
+					break;
+				case "-vnodes":
+					vnodes = args[i+1];
+					i += 2;
+					break;
+				default:
+					System.err.println("Unknown parameter: " + args[i]);
+					i++;
+			}
+		}
+		if(servers < 2 || keys < 1) {
+			System.err.println("Incorrect execution syntax");
+			System.err.println("java RingDistribution [-servers n] [-keys n] [-vnodes 1,40,160,...]");
+			System.exit(1);
+		}
+
+		List<ServerInfo> nodes = new ArrayList<>();
+		for(int i=0; i<=servers; i++) {
+			nodes.add(new ServerInfo("10.0.0." + (i + 1), 9000 + i));
+		}
+		List<ServerInfo> base = nodes.subList(0, servers);
+		List<ServerInfo> grown = nodes;
+		List<ServerInfo> shrunk = nodes.subList(1, servers);
+
+		String[] names = new String[keys];
+		for(int i=0; i<keys; i++) {
+			names[i] = "key_" + i;
+		}
+
+		System.out.printf("%d keys over %d servers, ideal share %.2f%%%n%n", keys, servers, 100.0 / servers);
+		System.out.printf("%7s %9s %9s %9s %13s %13s %10s%n",
+			"vnodes", "min/avg", "max/avg", "stddev", "moved +1 srv", "moved -1 srv", "lookup ns");
+
+		for(String v : vnodes.split(",")) {
+			int virtualNodes = Integer.parseInt(v.trim());
+			HashRing ring = new HashRing(base, virtualNodes);
+			HashRing larger = new HashRing(grown, virtualNodes);
+			HashRing smaller = new HashRing(shrunk, virtualNodes);
+
+			Map<ServerInfo, Integer> counts = new HashMap<>();
+			int movedOnAdd = 0;
+			int movedOnRemove = 0;
+			for(String name : names) {
+				ServerInfo owner = ring.locate(name);
+				counts.merge(owner, 1, Integer::sum);
+				if(!larger.locate(name).equals(owner)) movedOnAdd++;
+				if(!smaller.locate(name).equals(owner)) movedOnRemove++;
+			}
+
+			double avg = keys / (double) servers;
+			int min = Integer.MAX_VALUE;
+			int max = 0;
+			double variance = 0;
+			for(ServerInfo server : base) {
+				int count = counts.getOrDefault(server, 0);
+				min = Math.min(min, count);
+				max = Math.max(max, count);
+				variance += (count - avg) * (count - avg) / servers;
+			}
+
+			System.out.printf("%7d %9.3f %9.3f %8.2f%% %12.2f%% %12.2f%% %10.1f%n",
+				virtualNodes, min / avg, max / avg, 100 * Math.sqrt(variance) / avg,
+				100.0 * movedOnAdd / keys, 100.0 * movedOnRemove / keys, lookupNanos(ring, names));
+		}
+		System.out.printf("%nIdeal movement: %.2f%% when adding a server, %.2f%% when removing one%n",
+			100.0 / (servers + 1), 100.0 / servers);
+	}
+
+	private static double lookupNanos(HashRing ring, String[] names) {
+		int sink = 0;
+		// warm-up rounds for the JIT, the last one is measured
+		long elapsed = 0;
+		for(int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for(String name : names) {
+				sink += ring.locate(name).getPort();
+			}
+			elapsed = System.nanoTime() - start;
+		}
+		if(sink == 42) System.out.print("");
+		return elapsed / (double) names.length;
+	}
+}
@@ -11,6 +11,7 @@ public class TCPClient {
 		InetAddress address = null;
 		int port = 0;
 		String command = "";
+		String script = null;
 
 
 		for(int i=0; i<args.length;) {
@@ -57,13 +58,17 @@ public class TCPClient {
 							System.err.println("Unknown: " + command);
 					}
 					break;
+				case "-script":
+					script = args[i+1];
+					i += 2;
+					break;
 				default:
 					System.err.println("Unknown parameter: " + args[i]);
 					i++;
 			}
 		}
 		
-		if(address == null || port == 0 || command.equals("")) {
+		if(address == null || port == 0 || (command.equals("") && script == null)) {
 			System.err.println("Incorrect execution syntax");
                         System.exit(1);
                 }
@@ -74,6 +79,11 @@ public class TCPClient {
 			System.out.println("Socket created");
 			out = new PrintWriter(socket.getOutputStream(), true);
 			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+			if(script != null) {
+				runScript(script, socket, out, in);
+				return;
+			}
 			
 			System.out.println("Sending " + command + " as a request");
 			out.println(command);
@@ -95,4 +105,57 @@ public class TCPClient {
 			System.exit(1);
 		}
 	}
+
+	// Sends every line of the script over one connection without waiting,
+	// responses are read by a separate thread in the same order ("-" = stdin)
+	private static void runScript(String script, Socket socket, PrintWriter out, BufferedReader in) throws IOException {
+		java.util.List<String> commands = new java.util.ArrayList<>();
+		BufferedReader reader = script.equals("-")
+			? new BufferedReader(new InputStreamReader(System.in))
+			: new BufferedReader(new FileReader(script));
+		String line;
+		while((line = reader.readLine()) != null) {
+			line = line.trim();
+			if(! line.isEmpty()) {
+				commands.add(line);
+			}
+		}
+		reader.close();
+
+		int expected = 0;
+		for(String c : commands) {
+			if(! c.equals("QUIT")) {
+				expected++;
+			}
+		}
+		final int responses = expected;
+
+		Thread receiver = new Thread(() -> {
+			try {
+				for(int n = 0; n < responses; n++) {
+					String response = in.readLine();
+					if(response == null) {
+						System.err.println("Connection closed after " + n + " responses");
+						return;
+					}
+					System.out.println(response);
+				}
+			} catch(IOException e) {
+				System.err.println("Error while reading: " + e);
+			}
+		});
+		receiver.start();
+
+		System.out.println("Sending " + commands.size() + " commands");
+		for(String c : commands) {
+			out.println(c);
+		}
+
+		try {
+			receiver.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		socket.close();
+	}
 }
@@ -1,16 +1,27 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class TCPServer {
+	private static final int IDLE_TIMEOUT = 60000;
+
+	// null unless started with -wal
+	private static WriteAheadLog wal;
+
 	public static void main(String args[]) {
 		
 		ServerSocket serverSocket = null;
-		Socket clientSocket = null;
 
 		int portNumber = 0;
-		String keyName = null;
-		int keyValue = 0;
+		KeyValueStore store = new KeyValueStore();
+		List<String> keyNames = new ArrayList<>();
+		List<Long> keyValues = new ArrayList<>();
+		Long pendingValue = null;
+		String walDir = null;
+		WriteAheadLog.Sync sync = WriteAheadLog.Sync.BATCH;
+		long syncWindow = 0;
+		long snapshotInterval = 60000;
 
 		for(int i=0; i<args.length;) {
 			switch(args[i]) {
@@ -19,11 +30,49 @@ public class TCPServer {
 					i += 2;
 					break;
 				case "-key" :
-					keyName = args[i+1];
+					keyNames.add(args[i+1]);
+					keyValues.add(pendingValue);
+					pendingValue = null;
 					i += 2;
 					break;
 				case "-value" :
-					keyValue = Integer.parseInt(args[i+1]);
+					// the value belongs to the last key, or to the next one if given first
+					int last = keyValues.size() - 1;
+					if(last >= 0 && keyValues.get(last) == null) {
+						keyValues.set(last, Long.parseLong(args[i+1]));
+					} else {
+						pendingValue = Long.parseLong(args[i+1]);
+					}
+					i += 2;
+					break;
+				case "-file" :
+					try {
+						store.load(args[i+1]);
+					} catch (IOException e) {
+						System.err.println("Couldn't load keys from " + args[i+1] + ": " + e);
+						System.exit(1);
+					}
+					i += 2;
+					break;
+				case "-wal" :
+					walDir = args[i+1];
+					i += 2;
+					break;
+				case "-sync" :
+					try {
+						sync = WriteAheadLog.parseSync(args[i+1]);
+					} catch (IllegalArgumentException e) {
+						System.err.println("Unknown sync mode: " + args[i+1] + " (none, batch, always)");
+						System.exit(1);
+					}
+					i += 2;
+					break;
+				case "-syncWindow" :
+					syncWindow = Long.parseLong(args[i+1]);
+					i += 2;
+					break;
+				case "-snapshotInterval" :
+					snapshotInterval = Long.parseLong(args[i+1]);
 					i += 2;
 					break;
 				default:
@@ -31,10 +80,25 @@ public class TCPServer {
 					i++;
 			}
 		}
-		if(portNumber == 0 || keyName == null) {
+		// a key given without a value starts at 0
+		for(int i=0; i<keyNames.size(); i++) {
+			store.put(keyNames.get(i), keyValues.get(i) != null ? keyValues.get(i) : 0);
+		}
+		if(portNumber == 0 || store.size() == 0) {
 			System.err.println("Incorrect execution syntax");
 			System.exit(1);
 		}
+		// values from the log override the ones given on the command line
+		if(walDir != null) {
+			wal = new WriteAheadLog(new File(walDir), store, sync, syncWindow);
+			try {
+				wal.open(snapshotInterval);
+			} catch (IOException e) {
+				System.err.println("Couldn't open the write-ahead log in " + walDir + ": " + e);
+				System.exit(1);
+			}
+			System.out.println("Write-ahead log in " + walDir + ", sync " + sync.name().toLowerCase());
+		}
 
 		try {
 			System.out.println("Creating the main server socket at port " + portNumber);
@@ -46,74 +110,102 @@ public class TCPServer {
 			System.exit(1);
 		}   
 		
+		// every connection is served by its own pooled thread and stays open
+		// for further commands, so one slow client no longer blocks the others
+		ExecutorService workers = Executors.newCachedThreadPool();
 		while(true) try {
 			System.out.println("Waiting for a client");
-			clientSocket = serverSocket.accept();
+			Socket clientSocket = serverSocket.accept();
 			System.out.println("A client connected from " + clientSocket.getInetAddress().toString() + ":" + clientSocket.getPort());
+			workers.execute(() -> serve(clientSocket, store));
+		}
+		catch (IOException e) {
+			System.err.println("Error at work: " + e);
+		}
+	}
 
-			Scanner in = new Scanner(clientSocket.getInputStream());
-			PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-	    	
-			String command = "";
-			String parameter = "";
-			String name = "";
-			int value = 0;
-
-			String input = "";
-			String output = "";
+	private static void serve(Socket clientSocket, KeyValueStore store) {
+		try(Socket socket = clientSocket) {
+			socket.setSoTimeout(IDLE_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
 
-			command=in.next();
-			input = command;
-			switch(command) {
-				case "GET": 
-					parameter=in.next();
-					input += " " + parameter;
-					switch(parameter) {
-						case "NAMES":
-							output = "OK 1 " + keyName;
-							break;
-						case "VALUE":
-							name = in.next();
-							input += " " + name;
-							if(name.equals(keyName)) {
-								output = "OK " + keyValue;
-							} else {
-								output = "NA";
-							}
-							break;
-                                                default:
-                                                        output = "NA";
-                                        }
-					break;
-				case "SET":
-					name = in.next();
-					input += " " + name;
-					if(name.equals(keyName)) {
-						value = in.nextInt();
-						input += " " + value;
-						keyValue = value;
-						output  = "OK";
-					} else {
-						output  = "NA";
-					}
-					break;
-				case "QUIT":
-					System.out.println("Terminating");
-					System.exit(0);
-				default:
-					output = "NA";
+			String line;
+			while((line = in.readLine()) != null) {
+				String output = execute(line, store);
+				System.out.println("Parsed command: " + line.trim());
+				if(output == null) {
+					// GET NAMES is streamed key by key straight to the socket
+					System.out.println("Response: OK " + store.size() + " ...");
+					store.writeNames(out);
+				} else {
+					System.out.println("Response: " + output);
+					out.print(output);
+				}
+				out.print('\n');
+				out.flush();
 			}
-			System.out.println("Parsed command: " + input);
-			System.out.println("Response: " + output);
-
-			out.println(output);
-			
-		    	in.close();
-	    		out.close();
-	    		clientSocket.close();
+		}
+		catch (SocketTimeoutException e) {
+			System.out.println("Closing idle connection");
 		}
 		catch (IOException e) {
 			System.err.println("Error at work: " + e);
 		}
-	}    
+	}
+
+	/*
+	 * Returns the response line, or null for GET NAMES which is streamed by the caller.
+	 */
+	private static String execute(String line, KeyValueStore store) throws IOException {
+		StringTokenizer in = new StringTokenizer(line);
+		if(!in.hasMoreTokens()) {
+			return "NA";
+		}
+		switch(in.nextToken()) {
+			case "GET":
+				if(!in.hasMoreTokens()) {
+					return "NA";
+				}
+				switch(in.nextToken()) {
+					case "NAMES":
+						return null;
+					case "VALUE":
+						if(in.hasMoreTokens()) {
+							String name = in.nextToken();
+							if(store.has(name)) {
+								return "OK " + store.get(name);
+							}
+						}
+						return "NA";
+					default:
+						return "NA";
+				}
+			case "SET":
+				if(in.countTokens() < 2) {
+					return "NA";
+				}
+				String name = in.nextToken();
+				try {
+					long value = Long.parseLong(in.nextToken());
+					// an unknown key is created - the proxy places new keys on this node
+					// with a log the reply waits until the record is durable
+					if(wal != null) {
+						wal.set(name, value);
+					} else {
+						store.put(name, value);
+					}
+					return "OK";
+				}
+				catch (NumberFormatException e) {
+					return "NA";
+				}
+			case "QUIT":
+				System.out.println("Terminating");
+				System.exit(0);
+			default:
+				return "NA";
+		}
+	}
 }
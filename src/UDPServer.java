@@ -3,13 +3,22 @@ import java.net.*;
 import java.util.*;
 
 public class UDPServer {
+	// null unless started with -wal
+	private static WriteAheadLog wal;
+
 	public static void main(String args[]) {
 		
 		DatagramSocket serverSocket = null;
 
 		int portNumber = 0;
-		String keyName = null;
-		int keyValue = 0;
+		KeyValueStore store = new KeyValueStore();
+		List<String> keyNames = new ArrayList<>();
+		List<Long> keyValues = new ArrayList<>();
+		Long pendingValue = null;
+		String walDir = null;
+		WriteAheadLog.Sync sync = WriteAheadLog.Sync.BATCH;
+		long syncWindow = 0;
+		long snapshotInterval = 60000;
 		
 		for(int i=0; i<args.length;) {
 			switch(args[i]) {
@@ -18,11 +27,49 @@ public class UDPServer {
 					i += 2;
 					break;
 				case "-key" :
-					keyName = args[i+1];
+					keyNames.add(args[i+1]);
+					keyValues.add(pendingValue);
+					pendingValue = null;
 					i += 2;
 					break;
 				case "-value" :
-					keyValue = Integer.parseInt(args[i+1]);
+					// the value belongs to the last key, or to the next one if given first
+					int last = keyValues.size() - 1;
+					if(last >= 0 && keyValues.get(last) == null) {
+						keyValues.set(last, Long.parseLong(args[i+1]));
+					} else {
+						pendingValue = Long.parseLong(args[i+1]);
+					}
+					i += 2;
+					break;
+				case "-file" :
+					try {
+						store.load(args[i+1]);
+					} catch (IOException e) {
+						System.err.println("Couldn't load keys from " + args[i+1] + ": " + e);
+						System.exit(1);
+					}
+					i += 2;
+					break;
+				case "-wal" :
+					walDir = args[i+1];
+					i += 2;
+					break;
+				case "-sync" :
+					try {
+						sync = WriteAheadLog.parseSync(args[i+1]);
+					} catch (IllegalArgumentException e) {
+						System.err.println("Unknown sync mode: " + args[i+1] + " (none, batch, always)");
+						System.exit(1);
+					}
+					i += 2;
+					break;
+				case "-syncWindow" :
+					syncWindow = Long.parseLong(args[i+1]);
+					i += 2;
+					break;
+				case "-snapshotInterval" :
+					snapshotInterval = Long.parseLong(args[i+1]);
 					i += 2;
 					break;
 				default:
@@ -30,10 +77,25 @@ public class UDPServer {
 					i++;
 			}
 		}
-		if(portNumber == 0 || keyName == null) {
+		// a key given without a value starts at 0
+		for(int i=0; i<keyNames.size(); i++) {
+			store.put(keyNames.get(i), keyValues.get(i) != null ? keyValues.get(i) : 0);
+		}
+		if(portNumber == 0 || store.size() == 0) {
 			System.err.println("Incorrect execution syntax");
 			System.exit(1);
 		}
+		// values from the log override the ones given on the command line
+		if(walDir != null) {
+			wal = new WriteAheadLog(new File(walDir), store, sync, syncWindow);
+			try {
+				wal.open(snapshotInterval);
+			} catch (IOException e) {
+				System.err.println("Couldn't open the write-ahead log in " + walDir + ": " + e);
+				System.exit(1);
+			}
+			System.out.println("Write-ahead log in " + walDir + ", sync " + sync.name().toLowerCase());
+		}
 
 		try {
 			System.out.println("Creating the main server socket at port " + portNumber);
@@ -45,8 +107,9 @@ public class UDPServer {
 			System.exit(1);
 		}   
 		
+		final DatagramSocket socket = serverSocket;
 		while(true) try {
-	                byte[] buffer = new byte[256];
+	                byte[] buffer = new byte[65535];
                 	DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                         System.out.println("Waiting for a request");
 			serverSocket.receive(packet);
@@ -54,31 +117,37 @@ public class UDPServer {
 			int clientPort = packet.getPort();
 			System.out.println("A request received from " + clientAddress.toString() + ":" + clientPort);
 
-			Scanner in = new Scanner(new ByteArrayInputStream(packet.getData()));
+			Scanner in = new Scanner(new ByteArrayInputStream(packet.getData(), 0, packet.getLength()));
 	    	
 			String command = "";
 			String parameter = "";
 			String name = "";
-			int value = 0;
+			long value = 0;
 
 			String input = "";
 			String output = "";
+			boolean logged = false;
 
-			command=in.next();
+			// malformed datagrams get NA instead of killing the receive loop
+			command = in.hasNext() ? in.next() : "";
 			input = command;
 			switch(command) {
 				case "GET": 
-					parameter=in.next();
+					parameter = in.hasNext() ? in.next() : "";
 					input += " " + parameter;
 					switch(parameter) {
 						case "NAMES":
-							output = "OK 1 " + keyName;
+							output = names(store);
 							break;
 						case "VALUE":
+							if(!in.hasNext()) {
+								output = "NA";
+								break;
+							}
 							name = in.next();
 							input += " " + name;
-							if(name.equals(keyName)) {
-								output = "OK " + keyValue;
+							if(store.has(name)) {
+								output = "OK " + store.get(name);
 							} else {
 								output = "NA";
 							}
@@ -88,16 +157,25 @@ public class UDPServer {
 					}
 					break;
 				case "SET":
+					if(!in.hasNext()) {
+						output = "NA";
+						break;
+					}
 					name = in.next();
 					input += " " + name;
-					if(name.equals(keyName)) {
-						value = in.nextInt();
-						input += " " + value;
-						keyValue = value;
-						output  = "OK";
+					if(!in.hasNextLong()) {
+						output = "NA";
+						break;
+					}
+					// an unknown key is created - the proxy places new keys on this node
+					value = in.nextLong();
+					input += " " + value;
+					if(wal != null) {
+						logged = true;
 					} else {
-						output  = "NA";
+						store.put(name, value);
 					}
+					output  = "OK";
 					break;
 				case "QUIT":
 					System.out.println("Terminating");
@@ -105,17 +183,57 @@ public class UDPServer {
 				default:
 					output = "NA";
 			}
+			// echo the request id (" #id") appended by the proxy
+			while(in.hasNext()) {
+				String token = in.next();
+				if(token.matches("#[0-9]+")) {
+					output += " " + token;
+				}
+			}
 			System.out.println("Parsed command: " + input);
 			System.out.println("Response: " + output);
 
+		    	in.close();
+
+			if(logged) {
+				// the reply is sent once the record is durable, with group commit
+				// from the committer thread, so this loop keeps receiving meanwhile
+				byte[] data = output.getBytes();
+				DatagramPacket reply = new DatagramPacket(data, data.length, clientAddress, clientPort);
+				wal.set(name, value, () -> send(socket, reply));
+				continue;
+			}
 			packet.setData(output.getBytes());
 			serverSocket.send(packet);
-			
-		    	in.close();
 		}
 		catch (IOException e) {
 			System.err.println("Error at work");
 			System.err.println(e);
 		}
+	}
+
+	private static void send(DatagramSocket socket, DatagramPacket reply) {
+		try {
+			socket.send(reply);
+		}
+		catch (IOException e) {
+			System.err.println("Error at work");
+			System.err.println(e);
+		}
+	}
+
+	/*
+	 * The whole key list has to fit in a single datagram, so unlike TCPServer
+	 * it is collected first - large stores should be discovered over TCP.
+	 */
+	private static String names(KeyValueStore store) {
+		StringBuilder names = new StringBuilder();
+		try {
+			store.writeNames(names);
+		}
+		catch (IOException e) {
+			// StringBuilder does not throw
+		}
+		return names.toString();
 	}    
 }
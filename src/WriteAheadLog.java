@@ -0,0 +1,396 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/*
+ * Optional durability for TCPServer and UDPServer.
+ *
+ * Every successful SET is appended to wal-<gen>.log as a record
+ * [key length][key][value][crc32]. How the record reaches the disk depends on the sync mode:
+ *   none   - written to the OS page cache, the reply does not wait for fsync
+ *   batch  - group commit, a committer thread fsyncs everything appended while
+ *            the previous fsync ran (plus an optional sync window) at once and
+ *            only then releases the replies
+ *   always - fsync before every reply
+ *
+ * A snapshot first switches appends to a new log generation and then writes
+ * the store to snapshot-<gen>.dat without blocking SETs. SET stores absolute
+ * values, so replaying the newer logs over a snapshot taken in the meantime
+ * still ends with the right state. Older logs and snapshots are deleted once
+ * the new snapshot is on disk. Recovery maps the files into memory and stops
+ * a log at the first torn or corrupted record.
+ */
+public class WriteAheadLog {
+	public enum Sync { NONE, BATCH, ALWAYS }
+
+	private static final String LOG_PREFIX = "wal-";
+	private static final String LOG_SUFFIX = ".log";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".dat";
+	private static final int RECORD_OVERHEAD = 4 + 8 + 4;
+
+	private final File dir;
+	private final KeyValueStore store;
+	private final Sync sync;
+	private final long syncWindow;
+
+	private FileChannel log;
+	private long generation;
+	private long appended;
+	private ByteBuffer record = ByteBuffer.allocate(256);
+	private final CRC32 crc = new CRC32();
+
+	// replies waiting for the next group commit
+	private List<Runnable> waiting = new ArrayList<>();
+	private final Object forceLock = new Object();
+
+	public WriteAheadLog(File dir, KeyValueStore store, Sync sync, long syncWindow) {
+		this.dir = dir;
+		this.store = store;
+		this.sync = sync;
+		this.syncWindow = syncWindow;
+	}
+
+	/*
+	 * Loads the newest snapshot and the logs written after it into the store,
+	 * then starts a new log generation and the background threads.
+	 */
+	public void open(long snapshotInterval) throws IOException {
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Couldn't create " + dir);
+		}
+		long snapshot = -1;
+		long last = -1;
+		for(String name : dir.list()) {
+			if(name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX)) {
+				snapshot = Math.max(snapshot, generationOf(name, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX));
+			}
+			if(name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX)) {
+				last = Math.max(last, generationOf(name, LOG_PREFIX, LOG_SUFFIX));
+			}
+			if(name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(".tmp")) {
+				// an unfinished snapshot, the logs it was meant to replace are still there
+				new File(dir, name).delete();
+			}
+		}
+
+		long start = System.nanoTime();
+		long records = 0;
+		if(snapshot >= 0) {
+			records += replay(snapshotFile(snapshot));
+		}
+		for(long gen = Math.max(snapshot, 0); gen <= last; gen++) {
+			File file = logFile(gen);
+			if(file.exists()) {
+				records += replay(file);
+			}
+		}
+		System.out.printf("Recovered %d records from %s in %.1f ms%n", records, dir, (System.nanoTime() - start) / 1e6);
+
+		synchronized(this) {
+			generation = Math.max(snapshot, last) + 1;
+			log = openLog(generation);
+		}
+
+		if(sync == Sync.BATCH) {
+			startDaemon(this::commitLoop, "WAL-Committer");
+		}
+		if(snapshotInterval > 0) {
+			startDaemon(() -> snapshotLoop(snapshotInterval), "WAL-Snapshot");
+		}
+	}
+
+	/*
+	 * Stores the value, creating the key if needed, and logs it. onDurable runs
+	 * once the record is as durable as the sync mode promises - right away for
+	 * none and always, from the committer thread for batch.
+	 */
+	public void set(String key, long value, Runnable onDurable) throws IOException {
+		synchronized(this) {
+			// the store and the log are updated under one lock so their order matches,
+			// a record that failed to write is never applied
+			write(log, key, value);
+			store.put(key, value);
+			appended++;
+			if(sync == Sync.ALWAYS) {
+				log.force(false);
+			}
+			if(sync == Sync.BATCH) {
+				waiting.add(onDurable);
+				notifyAll();
+				return;
+			}
+		}
+		onDurable.run();
+	}
+
+	/*
+	 * Blocking variant for thread per connection servers.
+	 */
+	public void set(String key, long value) throws IOException {
+		final boolean[] done = new boolean[1];
+		Runnable release = () -> {
+			synchronized(done) {
+				done[0] = true;
+				done.notifyAll();
+			}
+		};
+		set(key, value, release);
+		synchronized(done) {
+			while(!done[0]) {
+				try {
+					done.wait();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for fsync");
+				}
+			}
+		}
+	}
+
+	/*
+	 * Group commit - waits for the first record, lets the sync window collect
+	 * more of them, then one fsync releases the whole batch.
+	 */
+	private void commitLoop() {
+		while(true) {
+			List<Runnable> batch;
+			FileChannel channel;
+			try {
+				synchronized(this) {
+					while(waiting.isEmpty()) {
+						wait();
+					}
+				}
+				if(syncWindow > 0) {
+					Thread.sleep(syncWindow);
+				}
+				synchronized(this) {
+					batch = waiting;
+					waiting = new ArrayList<>();
+					channel = log;
+				}
+			} catch(InterruptedException e) {
+				return;
+			}
+			try {
+				synchronized(forceLock) {
+					// a closed channel was already forced by rotate()
+					if(channel.isOpen()) {
+						channel.force(false);
+					}
+				}
+			} catch(IOException e) {
+				fail(e);
+			}
+			for(Runnable reply : batch) {
+				reply.run();
+			}
+		}
+	}
+
+	private void snapshotLoop(long interval) {
+		long snapshotted = 0;
+		while(true) {
+			try {
+				Thread.sleep(interval);
+			} catch(InterruptedException e) {
+				return;
+			}
+			long count;
+			synchronized(this) {
+				count = appended;
+			}
+			if(count == snapshotted) {
+				continue;
+			}
+			try {
+				snapshot();
+				snapshotted = count;
+			} catch(IOException e) {
+				System.err.println("Snapshot failed: " + e);
+			}
+		}
+	}
+
+	/*
+	 * Writes the whole store to a new snapshot, the logs it covers are deleted afterwards.
+	 */
+	public void snapshot() throws IOException {
+		long start = System.nanoTime();
+		long gen = rotate();
+
+		File tmp = new File(dir, SNAPSHOT_PREFIX + gen + ".tmp");
+		final long[] count = new long[1];
+		try(FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			final CRC32 snapshotCrc = new CRC32();
+			store.forEachEntry((key, value) -> {
+				byte[] name = key.getBytes(StandardCharsets.UTF_8);
+				if(buffer.remaining() < name.length + RECORD_OVERHEAD) {
+					drain(out, buffer);
+				}
+				if(buffer.remaining() < name.length + RECORD_OVERHEAD) {
+					ByteBuffer single = ByteBuffer.allocate(name.length + RECORD_OVERHEAD);
+					encode(single, snapshotCrc, name, value);
+					drain(out, single);
+				} else {
+					encode(buffer, snapshotCrc, name, value);
+				}
+				count[0]++;
+			});
+			drain(out, buffer);
+			out.force(true);
+		}
+		Files.move(tmp.toPath(), snapshotFile(gen).toPath(), StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory();
+
+		for(String name : dir.list()) {
+			if((name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX) && generationOf(name, LOG_PREFIX, LOG_SUFFIX) < gen)
+					|| (name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX) && generationOf(name, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX) < gen)) {
+				new File(dir, name).delete();
+			}
+		}
+		System.out.printf("Snapshot %d: %d keys in %.1f ms%n", gen, count[0], (System.nanoTime() - start) / 1e6);
+	}
+
+	/*
+	 * Moves appends to the next generation, everything in the old log is forced first.
+	 */
+	private synchronized long rotate() throws IOException {
+		FileChannel old = log;
+		synchronized(forceLock) {
+			old.force(false);
+			old.close();
+		}
+		generation++;
+		log = openLog(generation);
+		syncDirectory();
+		return generation;
+	}
+
+	private long replay(File file) throws IOException {
+		long records = 0;
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(size == 0) {
+				return 0;
+			}
+			if(size > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too large to map, take snapshots more often");
+			}
+			MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			CRC32 check = new CRC32();
+			byte[] name = new byte[256];
+			while(data.remaining() >= RECORD_OVERHEAD) {
+				int start = data.position();
+				int length = data.getInt();
+				if(length < 0 || length > data.remaining() - 12) {
+					break;
+				}
+				if(name.length < length) {
+					name = new byte[length];
+				}
+				data.get(name, 0, length);
+				long value = data.getLong();
+				int stored = data.getInt();
+
+				check.reset();
+				ByteBuffer covered = data.duplicate();
+				covered.position(start).limit(start + 4 + length + 8);
+				check.update(covered);
+				if((int) check.getValue() != stored) {
+					data.position(start);
+					break;
+				}
+				store.put(new String(name, 0, length, StandardCharsets.UTF_8), value);
+				records++;
+			}
+			if(data.hasRemaining()) {
+				System.err.println("Ignoring " + data.remaining() + " bytes of a torn record at the end of " + file);
+			}
+		}
+		return records;
+	}
+
+	private void write(FileChannel channel, String key, long value) throws IOException {
+		byte[] name = key.getBytes(StandardCharsets.UTF_8);
+		if(record.capacity() < name.length + RECORD_OVERHEAD) {
+			record = ByteBuffer.allocate(name.length + RECORD_OVERHEAD);
+		}
+		record.clear();
+		encode(record, crc, name, value);
+		drain(channel, record);
+	}
+
+	private static void encode(ByteBuffer buffer, CRC32 crc, byte[] name, long value) {
+		int start = buffer.position();
+		buffer.putInt(name.length).put(name).putLong(value);
+		crc.reset();
+		crc.update(buffer.array(), buffer.arrayOffset() + start, buffer.position() - start);
+		buffer.putInt((int) crc.getValue());
+	}
+
+	private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private FileChannel openLog(long gen) throws IOException {
+		return FileChannel.open(logFile(gen).toPath(), StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/*
+	 * Makes created and renamed files durable, not every platform can open a directory.
+	 */
+	private void syncDirectory() {
+		try(FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch(IOException e) {
+		}
+	}
+
+	/*
+	 * A failed fsync may have dropped the dirty pages, so the records can't be
+	 * confirmed any more - stop instead of acknowledging lost writes.
+	 */
+	private static void fail(IOException e) {
+		System.err.println("fsync failed, terminating: " + e);
+		System.exit(1);
+	}
+
+	private File logFile(long gen) {
+		return new File(dir, LOG_PREFIX + gen + LOG_SUFFIX);
+	}
+
+	private File snapshotFile(long gen) {
+		return new File(dir, SNAPSHOT_PREFIX + gen + SNAPSHOT_SUFFIX);
+	}
+
+	private static long generationOf(String name, String prefix, String suffix) {
+		try {
+			return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static void startDaemon(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public static Sync parseSync(String mode) {
+		return Sync.valueOf(mode.toUpperCase());
+	}
+}
@@ -0,0 +1,188 @@
+package cache;
+
+import metrics.Metrics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Ograniczony cache odpowiedzi GET VALUE w proxy: TTL dla każdego wpisu,
+ * usuwanie najdawniej używanych (LRU) po przekroczeniu liczby wpisów albo
+ * limitu pamięci. Podzielony na segmenty, każdy z własną blokadą.
+ *
+ * Zapis przez SET dostaje kolejny numer wersji segmentu i zostawia go przy
+ * kluczu (przy invalidate jako pusty wpis - tombstone). Odpowiedź z serwera
+ * trafia do cache tylko wtedy, gdy ten klucz nie był zapisany od chwili
+ * pobrania znacznika - wypełnienia innych kluczy jej nie unieważniają.
+ */
+public class ValueCache {
+    private static final int SEGMENTS = 16;
+    private static final int ENTRY_OVERHEAD = 96; // przybliżony narzut obiektów na wpis
+
+    private final Segment[] segments;
+    private final long ttlMs;
+
+    public ValueCache(int maxEntries, long maxBytes, long ttlMs) {
+        this.ttlMs = ttlMs;
+        this.segments = new Segment[SEGMENTS];
+        int entriesPerSegment = Math.max(1, maxEntries / SEGMENTS);
+        long bytesPerSegment = Math.max(1, maxBytes / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(entriesPerSegment, bytesPerSegment);
+        }
+    }
+
+    /**
+     * Zwraca zapamiętaną odpowiedź albo null (brak lub przeterminowana).
+     */
+    public String get(String key) {
+        String value = segmentFor(key).get(key, System.currentTimeMillis());
+        Metrics.increment(value != null ? "cache.hits" : "cache.misses");
+        return value;
+    }
+
+    /**
+     * Znacznik zapisów - pobierany przed zapytaniem do serwera, żeby odpowiedź
+     * nie nadpisała wartości ustawionej w międzyczasie przez SET tego klucza.
+     */
+    public long stamp(String key) {
+        return segmentFor(key).stamp();
+    }
+
+    public void putIfUnchanged(String key, String value, long stamp) {
+        segmentFor(key).fill(key, value, System.currentTimeMillis() + ttlMs, stamp);
+    }
+
+    /**
+     * Zapis przez proxy (write-through): nowa wartość zastępuje starą.
+     */
+    public void put(String key, String value) {
+        segmentFor(key).write(key, value, System.currentTimeMillis() + ttlMs);
+    }
+
+    public void invalidate(String key) {
+        segmentFor(key).remove(key);
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static long sizeOf(String key, String value) {
+        return ENTRY_OVERHEAD + 2L * (key.length() + (value != null ? value.length() : 0));
+    }
+
+    /**
+     * value == null to tombstone: klucz unieważniony przez SET, pamięta tylko wersję.
+     */
+    private static final class Entry {
+        private final String value;
+        private final long expiresAt;
+        private final long size;
+        private final long version;
+
+        Entry(String value, long expiresAt, long size, long version) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.size = size;
+            this.version = version;
+        }
+    }
+
+    private static final class Segment {
+        private final LinkedHashMap<String, Entry> entries;
+        private final int maxEntries;
+        private final long maxBytes;
+        private long bytes;
+        private long writes;
+        // najwyższa wersja wśród usuniętych wpisów - starszy znacznik nie wie, czy jego klucza to nie dotyczy
+        private long forgottenVersion;
+
+        Segment(int maxEntries, long maxBytes) {
+            this.entries = new LinkedHashMap<>(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized String get(String key, long now) {
+            Entry entry = entries.get(key);
+            if (entry == null || entry.value == null) {
+                return null;
+            }
+            if (entry.expiresAt <= now) {
+                removeEntry(key, entry);
+                Metrics.increment("cache.expired");
+                return null;
+            }
+            return entry.value;
+        }
+
+        synchronized long stamp() {
+            return writes;
+        }
+
+        /**
+         * Wypełnienie odpowiedzią serwera - pomijane, gdy klucz zapisano po pobraniu znacznika.
+         */
+        synchronized void fill(String key, String value, long expiresAt, long stamp) {
+            Entry old = entries.get(key);
+            long version = old != null ? old.version : forgottenVersion;
+            if (version > stamp) {
+                Metrics.increment("cache.fills.stale");
+                return;
+            }
+            replace(key, new Entry(value, expiresAt, sizeOf(key, value), old != null ? old.version : 0));
+        }
+
+        synchronized void write(String key, String value, long expiresAt) {
+            replace(key, new Entry(value, expiresAt, sizeOf(key, value), ++writes));
+        }
+
+        synchronized void remove(String key) {
+            replace(key, new Entry(null, Long.MAX_VALUE, sizeOf(key, null), ++writes));
+        }
+
+        private void replace(String key, Entry entry) {
+            Entry old = entries.remove(key);
+            if (old != null) {
+                bytes -= old.size;
+                Metrics.add("cache.entries", -1);
+                Metrics.add("cache.bytes", -old.size);
+            }
+
+            entries.put(key, entry);
+            bytes += entry.size;
+            Metrics.add("cache.entries", 1);
+            Metrics.add("cache.bytes", entry.size);
+
+            evict();
+        }
+
+        /**
+         * Usuwa najdawniej używane wpisy aż zmieścimy się w limitach.
+         */
+        private void evict() {
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                it.remove();
+                Entry entry = eldest.getValue();
+                bytes -= entry.size;
+                forgottenVersion = Math.max(forgottenVersion, entry.version);
+                Metrics.add("cache.entries", -1);
+                Metrics.add("cache.bytes", -entry.size);
+                Metrics.increment("cache.evictions");
+            }
+        }
+
+        private void removeEntry(String key, Entry entry) {
+            entries.remove(key);
+            bytes -= entry.size;
+            forgottenVersion = Math.max(forgottenVersion, entry.version);
+            Metrics.add("cache.entries", -1);
+            Metrics.add("cache.bytes", -entry.size);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package command;
+
+import model.ServerInfo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Jeden wątek z Selectorem obsługujący całe I/O do serwerów (TCP i UDP).
+ * Kanały, timery i stan puli połączeń są dotykane tylko z tego wątku,
+ * inne wątki zlecają pracę przez execute().
+ */
+class BackendEventLoop implements Runnable {
+
+    /**
+     * Obsługa gotowości kanału - wołana w wątku pętli.
+     */
+    interface ChannelHandler {
+        void onReady(SelectionKey key);
+    }
+
+    static final class Timer {
+        private final long deadline;
+        private final Runnable task;
+        private boolean cancelled;
+
+        private Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final PriorityQueue<Timer> timers;
+    private final Map<ServerInfo, InetSocketAddress> addresses;
+    private final Thread thread;
+    private volatile boolean running;
+
+    BackendEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.timers = new PriorityQueue<>(Comparator.comparingLong(t -> t.deadline));
+        this.addresses = new HashMap<>();
+        this.running = true;
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    void execute(Runnable task) {
+        if (inLoop()) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Tylko z wątku pętli.
+     */
+    Timer schedule(long delayMs, Runnable task) {
+        Timer timer = new Timer(System.currentTimeMillis() + delayMs, task);
+        timers.add(timer);
+        return timer;
+    }
+
+    /**
+     * Tylko z wątku pętli.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, ChannelHandler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Adres serwera rozwiązany raz i zapamiętany. Tylko z wątku pętli.
+     */
+    InetSocketAddress resolve(ServerInfo server) {
+        return addresses.computeIfAbsent(server, s -> new InetSocketAddress(s.getAddress(), s.getPort()));
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                long wait = nextTimerDelay();
+                if (wait < 0) {
+                    selector.select();
+                } else if (wait == 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(wait);
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    safeRun(task);
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid()) {
+                        ChannelHandler handler = (ChannelHandler) key.attachment();
+                        safeRun(() -> handler.onReady(key));
+                    }
+                }
+
+                runDueTimers();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.err.println("Error w pętli I/O do serwerów: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // Ignoruje
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignoruje
+            }
+        }
+    }
+
+    /**
+     * -1 gdy nie ma timerów (czekamy bez limitu), 0 gdy któryś już minął.
+     */
+    private long nextTimerDelay() {
+        while (!timers.isEmpty() && timers.peek().cancelled) {
+            timers.poll();
+        }
+        if (timers.isEmpty() || !tasks.isEmpty()) {
+            return tasks.isEmpty() ? -1 : 0;
+        }
+        return Math.max(0, timers.peek().deadline - System.currentTimeMillis());
+    }
+
+    private void runDueTimers() {
+        long now = System.currentTimeMillis();
+        while (!timers.isEmpty() && timers.peek().deadline <= now) {
+            Timer timer = timers.poll();
+            if (!timer.cancelled) {
+                safeRun(timer.task);
+            }
+        }
+    }
+
+    private void safeRun(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            System.err.println("Error w pętli I/O do serwerów: " + e);
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package command;
+
+import metrics.Metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Obciążenie jednego backendu widziane przez proxy: liczba zapytań w locie
+ * i wykładniczo ważona średnia czasu odpowiedzi (EWMA). Koszt wyboru rośnie
+ * z oboma, więc wolny albo zatkany serwer dostaje mniej odczytów.
+ * Histogram czasów odpowiedzi daje opóźnienie hedgingu i timeout zapytań.
+ */
+final class BackendLoad {
+    private static final double ALPHA = 0.2;
+    private static final double IDLE_HALF_LIFE_NANOS = 1_000_000_000.0;
+    private static final long PERCENTILE_CACHE_NANOS = 100_000_000L;
+    private static final long MIN_HEDGE_SAMPLES = 20;
+    // p99.9 z mniej niż 100 pomiarów to po prostu maksimum
+    private static final long MIN_TIMEOUT_SAMPLES = 100;
+    private static final double TIMEOUT_PERCENTILE = 0.999;
+    private static final int TIMEOUT_FACTOR = 4;
+    private static final int MIN_TIMEOUT = 100;
+    private static final int MAX_TIMEOUT = 2000;
+
+    private final String latencyMetric;
+    private final String timeoutMetric;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private volatile double latencyNanos;
+    private volatile long lastSampleNanos;
+    private volatile Percentile hedgeDelay;
+    private volatile Percentile timeout;
+
+    BackendLoad(String name) {
+        this.latencyMetric = "backend.latency.us." + name;
+        this.timeoutMetric = "backend.timeout.ms." + name;
+    }
+
+    long begin() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Kończy zapytanie rozpoczęte w begin(). Błąd liczy się czasem, który zajął
+     * (zwykle cały timeout), więc psujący się serwer szybko traci ruch.
+     * Do histogramu trafiają tylko udane odpowiedzi - timeouty zawyżyłyby percentyle.
+     */
+    void end(long startNanos, boolean success) {
+        inFlight.decrementAndGet();
+        long now = System.nanoTime();
+        long elapsed = now - startNanos;
+        synchronized (this) {
+            latencyNanos = latencyNanos == 0 ? elapsed : latencyNanos + ALPHA * (elapsed - latencyNanos);
+            lastSampleNanos = now;
+        }
+        Metrics.set(latencyMetric, (long) (latencyNanos / 1000));
+        if (success) {
+            histogram.record(elapsed / 1000);
+        }
+    }
+
+    /**
+     * Kończy zapytanie, które nie dotarło do serwera - bez pomiaru czasu.
+     */
+    void cancel() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Percentyl czasu odpowiedzi w ms (co najmniej 1), albo -1 gdy pomiarów jest za mało.
+     */
+    long hedgeDelayMillis(double fraction) {
+        Percentile current = refresh(hedgeDelay, fraction, MIN_HEDGE_SAMPLES);
+        hedgeDelay = current;
+        return current.micros < 0 ? -1 : Math.max(1, (current.micros + 999) / 1000);
+    }
+
+    /**
+     * Timeout zapytania w ms: p99.9 razy TIMEOUT_FACTOR, w granicach
+     * MIN_TIMEOUT..MAX_TIMEOUT, albo -1 gdy pomiarów jest za mało. Na szybkim
+     * łączu martwy serwer wychodzi po ~100 ms zamiast po 2 s. Serwer, który
+     * zwolnił ponad swój timeout, otwiera bezpiecznik; sonda czeka wtedy pełny
+     * timeout, a jej czas trafia do histogramu i podnosi p99.9.
+     */
+    int timeoutMillis() {
+        Percentile previous = timeout;
+        Percentile current = refresh(previous, TIMEOUT_PERCENTILE, MIN_TIMEOUT_SAMPLES);
+        if (current == previous) {
+            return current.millis;
+        }
+        if (current.micros >= 0) {
+            long millis = (current.micros * TIMEOUT_FACTOR + 999) / 1000;
+            current.millis = (int) Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, millis));
+            Metrics.set(timeoutMetric, current.millis);
+        }
+        timeout = current;
+        return current.millis;
+    }
+
+    /**
+     * Liczenie przechodzi cały histogram, więc wynik żyje PERCENTILE_CACHE_NANOS.
+     */
+    private Percentile refresh(Percentile cached, double fraction, long minSamples) {
+        long now = System.nanoTime();
+        if (cached != null && cached.fraction == fraction && now - cached.computedAt <= PERCENTILE_CACHE_NANOS) {
+            return cached;
+        }
+        return new Percentile(fraction, now, histogram.percentile(fraction, minSamples));
+    }
+
+    /**
+     * Serwer bez pomiarów ma koszt 0 - dostanie pierwsze zapytanie i zmierzy się.
+     * Stary pomiar wygasa (połowa co IDLE_HALF_LIFE_NANOS), więc serwer, który raz
+     * odpowiedział wolno, po chwili znów dostanie zapytanie zamiast czekać w nieskończoność.
+     */
+    double cost() {
+        double latency = latencyNanos;
+        if (latency > 0) {
+            long idle = System.nanoTime() - lastSampleNanos;
+            if (idle > IDLE_HALF_LIFE_NANOS) {
+                latency *= Math.pow(0.5, idle / IDLE_HALF_LIFE_NANOS);
+            }
+        }
+        return latency * (inFlight.get() + 1);
+    }
+
+    private static final class Percentile {
+        private final double fraction;
+        private final long computedAt;
+        private final long micros;
+        private int millis = -1;
+
+        Percentile(double fraction, long computedAt, long micros) {
+            this.fraction = fraction;
+            this.computedAt = computedAt;
+            this.micros = micros;
+        }
+    }
+}
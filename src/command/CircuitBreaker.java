@@ -0,0 +1,117 @@
+package command;
+
+import metrics.Metrics;
+
+/**
+ * Bezpiecznik jednego backendu. ZAMKNIĘTY przepuszcza zapytania i liczy kolejne
+ * błędy; po FAILURE_THRESHOLD otwiera się i zapytania od razu dostają NA, zamiast
+ * czekać na timeout. Po czasie otwarcia jedno zapytanie próbne (PÓŁOTWARTY)
+ * decyduje, czy wrócić do pracy - nieudane wydłuża kolejne otwarcie dwukrotnie.
+ * Aktywna sonda w tle może zamknąć bezpiecznik wcześniej.
+ */
+final class CircuitBreaker {
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long MIN_OPEN_NANOS = 1_000_000_000L;
+    private static final long MAX_OPEN_NANOS = 30_000_000_000L;
+
+    private final String name;
+    private final String stateMetric;
+    private volatile State state = State.CLOSED;
+    private volatile int failures;
+    private long openNanos = MIN_OPEN_NANOS;
+    private long openedAt;
+    private boolean probing;
+
+    CircuitBreaker(String name) {
+        this.name = name;
+        this.stateMetric = "circuit.state." + name;
+    }
+
+    /**
+     * Czy wysłać zapytanie. Zamknięty bezpiecznik nie bierze blokady.
+     */
+    boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+                setState(State.HALF_OPEN);
+                return true;
+            }
+            return state == State.CLOSED;
+        }
+    }
+
+    void onSuccess() {
+        if (state == State.CLOSED && failures == 0) {
+            return;
+        }
+        synchronized (this) {
+            failures = 0;
+            openNanos = MIN_OPEN_NANOS;
+            if (state != State.CLOSED) {
+                setState(State.CLOSED);
+                Metrics.increment("circuit.closed");
+                System.out.println("[Health] " + name + " znów odpowiada - bezpiecznik zamknięty");
+            }
+        }
+    }
+
+    synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN) {
+            openNanos = Math.min(openNanos * 2, MAX_OPEN_NANOS);
+            open();
+        } else if (state == State.CLOSED && failures >= FAILURE_THRESHOLD) {
+            open();
+        }
+    }
+
+    /**
+     * Zapytanie nie dotarło do serwera (np. brak połączenia w puli) - nic nie wiemy
+     * o jego stanie. Zapytanie próbne wraca do OPEN bez wydłużania czasu otwarcia,
+     * więc następne zapytanie znów może spróbować.
+     */
+    synchronized void onAbandoned() {
+        if (state == State.HALF_OPEN) {
+            setState(State.OPEN);
+        }
+    }
+
+    /**
+     * Sonda w tle dla otwartego bezpiecznika, najwyżej jedna naraz.
+     */
+    synchronized boolean startProbe() {
+        if (state == State.CLOSED || probing) {
+            return false;
+        }
+        probing = true;
+        return true;
+    }
+
+    synchronized void endProbe() {
+        probing = false;
+    }
+
+    boolean isAvailable() {
+        return state == State.CLOSED;
+    }
+
+    private void open() {
+        openedAt = System.nanoTime();
+        if (state != State.OPEN) {
+            Metrics.increment("circuit.opened");
+            System.out.println("[Health] " + name + " nie odpowiada (" + failures + " błędów) - bezpiecznik otwarty na "
+                    + openNanos / 1_000_000 + " ms");
+        }
+        setState(State.OPEN);
+    }
+
+    private void setState(State next) {
+        state = next;
+        Metrics.set(stateMetric, next.ordinal());
+    }
+}
@@ -0,0 +1,218 @@
+package command;
+
+import discovery.RoutingTable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sparsowana komenda klienta. Parser czyta bajty prosto z bufora odbiorczego,
+ * bez wyrażeń regularnych i tablic tokenów. Znane klucze są zamieniane na
+ * kanoniczny String z tabeli routingu, więc GET VALUE nie tworzy nowych obiektów.
+ * Obiekt jest wielokrotnego użytku - parse() nadpisuje poprzedni stan.
+ */
+public final class Command {
+
+    public enum Type {
+        GET_NAMES, GET_STATS, GET_VALUE, SET, MGET, MSET, QUIT, INVALID
+    }
+
+    private static final byte[] GET = {'G', 'E', 'T'};
+    private static final byte[] SET = {'S', 'E', 'T'};
+    private static final byte[] QUIT = {'Q', 'U', 'I', 'T'};
+    private static final byte[] MGET = {'M', 'G', 'E', 'T'};
+    private static final byte[] MSET = {'M', 'S', 'E', 'T'};
+    private static final byte[] NAMES = {'N', 'A', 'M', 'E', 'S'};
+    private static final byte[] STATS = {'S', 'T', 'A', 'T', 'S'};
+    private static final byte[] VALUE = {'V', 'A', 'L', 'U', 'E'};
+
+    private Type type = Type.INVALID;
+    private String key;
+    private String value;
+    private final List<String> keys = new ArrayList<>();
+    private final List<String> values = new ArrayList<>();
+
+    // pozycja kursora w trakcie parsowania
+    private byte[] buf;
+    private int pos;
+    private int end;
+    private int tokenStart;
+    private int tokenLength;
+
+    public Command parse(byte[] data, int offset, int length, RoutingTable routing) {
+        type = Type.INVALID;
+        key = null;
+        value = null;
+        keys.clear();
+        values.clear();
+        buf = data;
+        pos = offset;
+        end = offset + length;
+
+        if (nextToken()) {
+            if (tokenIs(GET)) {
+                parseGet(routing);
+            } else if (tokenIs(SET)) {
+                parseSet(routing);
+            } else if (tokenIs(MGET)) {
+                parseMultiGet(routing);
+            } else if (tokenIs(MSET)) {
+                parseMultiSet(routing);
+            } else if (tokenIs(QUIT)) {
+                type = Type.QUIT;
+            }
+        }
+
+        buf = null;
+        return this;
+    }
+
+    private void parseGet(RoutingTable routing) {
+        if (!nextToken()) {
+            return;
+        }
+
+        if (tokenIs(NAMES)) {
+            type = Type.GET_NAMES;
+        } else if (tokenIs(STATS)) {
+            type = Type.GET_STATS;
+        } else if (tokenIs(VALUE) && nextToken()) {
+            key = tokenAsKey(routing);
+            type = Type.GET_VALUE;
+        }
+    }
+
+    private void parseSet(RoutingTable routing) {
+        if (!nextToken()) {
+            return;
+        }
+        String k = tokenAsKey(routing);
+
+        // wartość musi być liczbą - inaczej nowy klucz trafiłby na pierścień z nieprawidłowym SET
+        if (!nextToken() || !tokenIsLong()) {
+            return;
+        }
+        key = k;
+        value = new String(buf, tokenStart, tokenLength);
+        type = Type.SET;
+    }
+
+    /**
+     * MGET k1 k2 ... - co najmniej jeden klucz.
+     */
+    private void parseMultiGet(RoutingTable routing) {
+        while (nextToken()) {
+            keys.add(tokenAsKey(routing));
+        }
+        if (!keys.isEmpty()) {
+            type = Type.MGET;
+        }
+    }
+
+    /**
+     * MSET k1 v1 k2 v2 ... - pary klucz/wartość, bez niesparowanego klucza na końcu,
+     * wszystkie wartości liczbowe.
+     */
+    private void parseMultiSet(RoutingTable routing) {
+        while (nextToken()) {
+            String k = tokenAsKey(routing);
+            if (!nextToken() || !tokenIsLong()) {
+                keys.clear();
+                values.clear();
+                return;
+            }
+            keys.add(k);
+            values.add(new String(buf, tokenStart, tokenLength));
+        }
+        if (!keys.isEmpty()) {
+            type = Type.MSET;
+        }
+    }
+
+    /**
+     * Przesuwa kursor na kolejny token oddzielony białymi znakami.
+     */
+    private boolean nextToken() {
+        while (pos < end && isWhitespace(buf[pos])) {
+            pos++;
+        }
+        tokenStart = pos;
+        while (pos < end && !isWhitespace(buf[pos])) {
+            pos++;
+        }
+        tokenLength = pos - tokenStart;
+        return tokenLength > 0;
+    }
+
+    private boolean tokenIs(byte[] word) {
+        if (tokenLength != word.length) {
+            return false;
+        }
+        for (int i = 0; i < word.length; i++) {
+            if (buf[tokenStart + i] != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Czy token to liczba mieszcząca się w long (jak Long.parseLong).
+     */
+    private boolean tokenIsLong() {
+        int i = tokenStart;
+        int stop = tokenStart + tokenLength;
+        if (buf[i] == '-' || buf[i] == '+') {
+            i++;
+        }
+        if (i == stop) {
+            return false;
+        }
+        for (int j = i; j < stop; j++) {
+            if (buf[j] < '0' || buf[j] > '9') {
+                return false;
+            }
+        }
+        if (stop - i < 19) {
+            return true;
+        }
+        try {
+            Long.parseLong(new String(buf, tokenStart, tokenLength));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private String tokenAsKey(RoutingTable routing) {
+        String known = routing.lookupKey(buf, tokenStart, tokenLength);
+        return known != null ? known : new String(buf, tokenStart, tokenLength);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Klucze MGET/MSET - lista jest czyszczona przy kolejnym parse().
+     */
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    public List<String> getValues() {
+        return values;
+    }
+}
@@ -1,108 +1,496 @@
 package command;
 
+import cache.ValueCache;
 import discovery.KeyDiscovery;
+import discovery.RoutingTable;
+import metrics.Metrics;
 import model.ServerInfo;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class CommandProcessor {
     private final KeyDiscovery keyDiscovery;
     private final ServerForwarder serverForwarder;
     private final List<ServerInfo> servers;
+    private final ValueCache valueCache;
+    private final SingleFlight singleFlight;
+    private final ThreadLocal<Command> parsedCommand = ThreadLocal.withInitial(Command::new);
+    // serwery, które nie znają MGET/MSET - dostają od razu pojedyncze zapytania
+    private final Set<ServerInfo> noBatchSupport = ConcurrentHashMap.newKeySet();
 
     public CommandProcessor(KeyDiscovery keyDiscovery, List<ServerInfo> servers) {
+        this(keyDiscovery, servers, null);
+    }
+
+    /**
+     * @param valueCache cache odpowiedzi GET VALUE, null = bez cache
+     */
+    public CommandProcessor(KeyDiscovery keyDiscovery, List<ServerInfo> servers, ValueCache valueCache) {
         this.keyDiscovery = keyDiscovery;
         this.serverForwarder = new ServerForwarder();
         this.servers = servers;
+        this.valueCache = valueCache;
+        this.singleFlight = new SingleFlight();
+        keyDiscovery.setServerFilter(serverForwarder::isAvailable);
+        keyDiscovery.setTimeouts(serverForwarder::adaptiveTimeout);
+    }
+
+    /**
+     * Hedging GET VALUE dla kluczy z kilkoma replikami, zob. ServerForwarder.forwardHedged.
+     *
+     * @param percentile percentyl czasu odpowiedzi, po którym idzie drugie zapytanie, 0 = wyłączone
+     * @param budgetPercent najwyżej tyle procent odczytów może dostać drugie zapytanie
+     */
+    public void setHedging(int percentile, int budgetPercent) {
+        serverForwarder.setHedging(percentile, budgetPercent);
     }
 
 
     public String processCommand(String command) {
-        if (command == null || command.trim().isEmpty()) {
-            return "NA";
+        return processCommandAsync(command).join();
+    }
+
+    /**
+     * Przetwarza komendę bez blokowania wątku na czas zapytania do serwera.
+     */
+    public CompletableFuture<String> processCommandAsync(String command) {
+        if (command == null) {
+            return CompletableFuture.completedFuture("NA");
         }
+        byte[] data = command.getBytes();
+        return processCommandAsync(data, 0, data.length);
+    }
+
+    /**
+     * Wersja dla surowych bajtów z bufora odbiorczego - bez dekodowania do Stringa.
+     * Bufor może zostać użyty ponownie zaraz po powrocie z metody.
+     */
+    public CompletableFuture<String> processCommandAsync(byte[] data, int offset, int length) {
+        Command command = parsedCommand.get().parse(data, offset, length, keyDiscovery.getRoutingTable());
+        return processCommandAsync(command);
+    }
+
+    /**
+     * Pola komendy są odczytywane od razu, więc obiekt można użyć ponownie po powrocie.
+     */
+    public CompletableFuture<String> processCommandAsync(Command command) {
+        switch (command.getType()) {
+            case GET_NAMES:
+                return CompletableFuture.completedFuture(handleGetNames());
+
+            case GET_STATS:
+                return CompletableFuture.completedFuture(Metrics.snapshot());
+
+            case GET_VALUE:
+                return handleGetValue(command.getKey());
 
-        String[] parts = command.trim().split("\\s+");
-        String cmd = parts[0];
+            case SET:
+                return handleSet(command.getKey(), command.getValue());
 
-        switch (cmd) {
-            case "GET":
-                return handleGet(parts);
+            case MGET:
+                return handleMultiGet(new ArrayList<>(command.getKeys()));
 
-            case "SET":
-                return handleSet(parts);
+            case MSET:
+                return handleMultiSet(new ArrayList<>(command.getKeys()), new ArrayList<>(command.getValues()));
 
-            case "QUIT":
+            case QUIT:
                 handleQuit();
-                return "";
+                return CompletableFuture.completedFuture("");
 
             default:
-                return "NA";
+                return CompletableFuture.completedFuture("NA");
         }
     }
 
 
-    private String handleGet(String[] parts) {
-        if (parts.length < 2) {
-            return "NA";
+    private String handleGetNames() {
+        return keyDiscovery.getCompleteRoutingTable().getNamesResponse();
+    }
+
+
+    private CompletableFuture<String> handleGetValue(String key) {
+        List<ServerInfo> replicas = keyDiscovery.getReplicasForKey(key);
+
+        if (replicas == null) {
+            return CompletableFuture.completedFuture("NA");
+        }
+        if (valueCache == null) {
+            return singleFlight.execute(key, () -> serverForwarder.forwardHedged(replicas, "GET VALUE " + key));
         }
 
-        if (parts[1].equals("NAMES")) {
-            return handleGetNames();
-        } else if (parts[1].equals("VALUE") && parts.length >= 3) {
-            String key = parts[2];
-            return handleGetValue(key);
+        String cached = valueCache.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
         }
 
-        return "NA";
+        return singleFlight.execute(key, () -> {
+            long stamp = valueCache.stamp(key);
+            return serverForwarder.forwardHedged(replicas, "GET VALUE " + key).thenApply(response -> {
+                if (response.startsWith("OK ")) {
+                    valueCache.putIfUnchanged(key, response, stamp);
+                }
+                return response;
+            });
+        });
     }
 
-    private String handleGetNames() {
-        Set<String> allKeys = keyDiscovery.getAllKeys();
 
-        if (allKeys.isEmpty()) {
-            return "OK 0";
+    private CompletableFuture<String> handleSet(String key, String value) {
+        List<ServerInfo> replicas = keyDiscovery.getReplicasForKey(key);
+        ServerInfo placed = replicas == null ? placeNewKey(key) : null;
+
+        if (replicas == null && placed == null) {
+            return CompletableFuture.completedFuture("NA");
         }
 
-        StringBuilder sb = new StringBuilder("OK ");
-        sb.append(allKeys.size());
+        beforeSet(key);
+        String command = "SET " + key + " " + value;
+        CompletableFuture<String> response = replicas == null
+                ? serverForwarder.forwardToServerAsync(placed, command)
+                : setOnReplicas(replicas, command);
+        if (valueCache == null && placed == null) {
+            return response;
+        }
 
-        for (String key : allKeys) {
-            sb.append(" ").append(key);
+        return response.thenApply(result -> {
+            if (placed != null) {
+                afterCreate(key, placed, result);
+            }
+            afterSet(key, value, result);
+            return result;
+        });
+    }
+
+    /**
+     * SET idzie do wszystkich replik równolegle. OK tylko gdy każda przyjęła
+     * zapis, inaczej pierwsza odpowiedź inna niż OK.
+     */
+    private CompletableFuture<String> setOnReplicas(List<ServerInfo> replicas, String command) {
+        if (replicas.size() == 1) {
+            return serverForwarder.forwardToServerAsync(replicas.get(0), command);
+        }
+        Metrics.increment("replica.fanout");
+        List<CompletableFuture<String>> writes = new ArrayList<>(replicas.size());
+        for (ServerInfo replica : replicas) {
+            writes.add(serverForwarder.forwardToServerAsync(replica, command));
         }
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            for (CompletableFuture<String> write : writes) {
+                String result = write.join();
+                if (!result.equals("OK")) {
+                    Metrics.increment("replica.fanout.failed");
+                    return result;
+                }
+            }
+            return "OK";
+        });
+    }
 
-        return sb.toString();
+    /**
+     * Klucz nieznany żadnemu backendowi trafia na serwer wskazany przez pierścień.
+     */
+    private ServerInfo placeNewKey(String key) {
+        ServerInfo server = keyDiscovery.placeNewKey(key);
+        if (server != null) {
+            Metrics.increment("ring.placed");
+        }
+        return server;
+    }
+
+    private void afterCreate(String key, ServerInfo server, String response) {
+        if (response.equals("OK")) {
+            keyDiscovery.addCreatedKey(key, server);
+        }
+    }
+
+    private void beforeSet(String key) {
+        singleFlight.forget(key);
+        if (valueCache != null) {
+            valueCache.invalidate(key);
+        }
+    }
+
+    /**
+     * write-through: po udanym SET cache od razu ma nową wartość
+     */
+    private void afterSet(String key, String value, String response) {
+        if (valueCache == null) {
+            return;
+        }
+        if (response.equals("OK") && isNumber(value)) {
+            valueCache.put(key, "OK " + Long.parseLong(value));
+        } else {
+            valueCache.invalidate(key);
+        }
+    }
+
+
+    /**
+     * MGET k1 k2 ... -> "OK n v1 v2 ...", NA w miejscu klucza, którego nie udało się odczytać.
+     * Klucze są grupowane po serwerach i każda grupa idzie jednym zapytaniem MGET, równolegle.
+     */
+    private CompletableFuture<String> handleMultiGet(List<String> keys) {
+        String[] results = new String[keys.size()];
+        Map<ServerInfo, List<Integer>> groups = new LinkedHashMap<>();
+
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            List<ServerInfo> replicas = keyDiscovery.getReplicasForKey(key);
+            String cached = replicas != null && valueCache != null ? valueCache.get(key) : null;
+
+            if (replicas == null) {
+                results[i] = "NA";
+            } else if (cached != null) {
+                results[i] = valueOf(cached);
+            } else {
+                groups.computeIfAbsent(serverForwarder.chooseReplica(replicas), s -> new ArrayList<>()).add(i);
+            }
+        }
+
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (Map.Entry<ServerInfo, List<Integer>> group : groups.entrySet()) {
+            parts.add(multiGetFromServer(group.getKey(), keys, group.getValue(), results));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> joinResults(results));
     }
 
+    private CompletableFuture<Void> multiGetFromServer(ServerInfo server, List<String> keys,
+                                                       List<Integer> indexes, String[] results) {
+        if (indexes.size() == 1 || noBatchSupport.contains(server)) {
+            return multiGetPerKey(keys, indexes, results);
+        }
+
+        StringBuilder request = new StringBuilder("MGET");
+        long[] stamps = new long[indexes.size()];
+        for (int j = 0; j < indexes.size(); j++) {
+            String key = keys.get(indexes.get(j));
+            request.append(" ").append(key);
+            stamps[j] = valueCache != null ? valueCache.stamp(key) : 0;
+        }
+        Metrics.increment("batch.mget");
+
+        return serverForwarder.forwardToServerAsync(server, request.toString()).thenCompose(response -> {
+            String[] values = parseBatchResponse(response, indexes.size());
+            if (values == null) {
+                return multiGetPerKey(keys, indexes, results).thenRun(() -> rememberNoBatch(server, indexes, results));
+            }
+            for (int j = 0; j < indexes.size(); j++) {
+                int i = indexes.get(j);
+                results[i] = values[j];
+                if (valueCache != null && !values[j].equals("NA")) {
+                    valueCache.putIfUnchanged(keys.get(i), "OK " + values[j], stamps[j]);
+                }
+            }
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    private CompletableFuture<Void> multiGetPerKey(List<String> keys, List<Integer> indexes, String[] results) {
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (int i : indexes) {
+            calls.add(handleGetValue(keys.get(i)).thenAccept(response -> results[i] = valueOf(response)));
+        }
+        return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0]));
+    }
 
-    private String handleGetValue(String key) {
-        ServerInfo server = keyDiscovery.getServerForKey(key);
 
-        if (server == null) {
-            return "NA";
+    /**
+     * MSET k1 v1 k2 v2 ... -> "OK n s1 s2 ...", gdzie si to OK albo NA dla danego klucza.
+     * Klucz z kilkoma replikami trafia do grupy każdej z nich i ma OK tylko wtedy,
+     * gdy zapisały go wszystkie.
+     */
+    private CompletableFuture<String> handleMultiSet(List<String> keys, List<String> values) {
+        String[] results = new String[keys.size()];
+        ServerInfo[] placed = new ServerInfo[keys.size()];
+        Map<ServerInfo, List<Integer>> groups = new LinkedHashMap<>();
+
+        for (int i = 0; i < keys.size(); i++) {
+            List<ServerInfo> replicas = keyDiscovery.getReplicasForKey(keys.get(i));
+            if (replicas == null) {
+                placed[i] = placeNewKey(keys.get(i));
+                replicas = placed[i] != null ? Collections.singletonList(placed[i]) : Collections.emptyList();
+            }
+            if (replicas.isEmpty()) {
+                results[i] = "NA";
+                continue;
+            }
+            beforeSet(keys.get(i));
+            for (ServerInfo replica : replicas) {
+                groups.computeIfAbsent(replica, s -> new ArrayList<>()).add(i);
+            }
         }
 
-        return serverForwarder.forwardToServer(server, "GET VALUE " + key);
+        Map<ServerInfo, String[]> statuses = new LinkedHashMap<>();
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (Map.Entry<ServerInfo, List<Integer>> group : groups.entrySet()) {
+            String[] serverStatuses = new String[keys.size()];
+            statuses.put(group.getKey(), serverStatuses);
+            parts.add(multiSetOnServer(group.getKey(), keys, values, group.getValue(), serverStatuses));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            for (int i = 0; i < keys.size(); i++) {
+                if (results[i] != null) {
+                    continue;
+                }
+                results[i] = "OK";
+                for (String[] serverStatuses : statuses.values()) {
+                    if (serverStatuses[i] != null && !serverStatuses[i].equals("OK")) {
+                        results[i] = serverStatuses[i];
+                    }
+                }
+                if (placed[i] != null) {
+                    afterCreate(keys.get(i), placed[i], results[i]);
+                }
+                afterSet(keys.get(i), values.get(i), results[i]);
+            }
+            return joinResults(results);
+        });
     }
 
+    /**
+     * Zapisuje grupę kluczy na jednym serwerze, status każdego trafia do statuses.
+     */
+    private CompletableFuture<Void> multiSetOnServer(ServerInfo server, List<String> keys, List<String> values,
+                                                     List<Integer> indexes, String[] statuses) {
+        if (indexes.size() == 1 || noBatchSupport.contains(server)) {
+            return multiSetPerKey(server, keys, values, indexes, statuses);
+        }
 
-    private String handleSet(String[] parts) {
-        if (parts.length < 3) {
-            return "NA";
+        StringBuilder request = new StringBuilder("MSET");
+        for (int i : indexes) {
+            request.append(" ").append(keys.get(i)).append(" ").append(values.get(i));
         }
+        Metrics.increment("batch.mset");
 
-        String key = parts[1];
-        String value = parts[2];
+        return serverForwarder.forwardToServerAsync(server, request.toString()).thenCompose(response -> {
+            String[] batch = parseBatchResponse(response, indexes.size());
+            if (batch == null) {
+                return multiSetPerKey(server, keys, values, indexes, statuses)
+                        .thenRun(() -> rememberNoBatch(server, indexes, statuses));
+            }
+            for (int j = 0; j < indexes.size(); j++) {
+                statuses[indexes.get(j)] = batch[j];
+            }
+            return CompletableFuture.completedFuture(null);
+        });
+    }
 
-        ServerInfo server = keyDiscovery.getServerForKey(key);
+    private CompletableFuture<Void> multiSetPerKey(ServerInfo server, List<String> keys, List<String> values,
+                                                   List<Integer> indexes, String[] statuses) {
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (int i : indexes) {
+            calls.add(serverForwarder.forwardToServerAsync(server, "SET " + keys.get(i) + " " + values.get(i))
+                    .thenAccept(response -> statuses[i] = response));
+        }
+        return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0]));
+    }
 
-        if (server == null) {
-            return "NA";
+    /**
+     * "OK n x1 ... xn" -> {x1 ... xn}, null gdy serwer odrzucił komendę (np. NA od serwera bez MGET/MSET).
+     */
+    private static String[] parseBatchResponse(String response, int expected) {
+        String[] parts = response.trim().split("\\s+");
+        if (parts.length != expected + 2 || !parts[0].equals("OK")) {
+            return null;
         }
+        try {
+            if (Integer.parseInt(parts[1]) != expected) {
+                return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        String[] values = new String[expected];
+        System.arraycopy(parts, 2, values, 0, expected);
+        return values;
+    }
 
-        return serverForwarder.forwardToServer(server, "SET " + key + " " + value);
+    /**
+     * Serwer odrzucił zapytanie zbiorcze, ale pojedyncze działają - więc nie zna
+     * MGET/MSET. Gdy pojedyncze też zawiodły, był to raczej chwilowy błąd.
+     */
+    private void rememberNoBatch(ServerInfo server, List<Integer> indexes, String[] results) {
+        for (int i : indexes) {
+            if (!"NA".equals(results[i])) {
+                if (noBatchSupport.add(server)) {
+                    System.out.println("[Batch] " + server + " nie obsługuje MGET/MSET - pojedyncze zapytania");
+                }
+                return;
+            }
+        }
+    }
+
+    private static String valueOf(String response) {
+        return response.startsWith("OK ") ? response.substring(3) : "NA";
+    }
+
+    private static String joinResults(String[] results) {
+        StringBuilder sb = new StringBuilder("OK ");
+        sb.append(results.length);
+        for (String result : results) {
+            sb.append(" ").append(result);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Koduje odpowiedź do wysłania. Odpowiedź GET NAMES ma gotowe bajty
+     * w aktualnej tabeli routingu, więc nie kodujemy jej za każdym razem.
+     */
+    public byte[] encodeResponse(String response) {
+        RoutingTable routing = keyDiscovery.getRoutingTable();
+        if (response == routing.getNamesResponse()) {
+            return routing.getNamesResponseBytes();
+        }
+        return response.getBytes();
+    }
+
+    /**
+     * Koduje odpowiedź do podanego bufora (np. tego, w którym przyszło zapytanie),
+     * bez pośrednich kopii. Gdy się nie mieści, zwraca nowy bufor.
+     */
+    public ByteBuffer encodeResponse(String response, ByteBuffer buffer) {
+        buffer.clear();
+        RoutingTable routing = keyDiscovery.getRoutingTable();
+        if (response == routing.getNamesResponse()) {
+            byte[] names = routing.getNamesResponseBytes();
+            if (names.length > buffer.capacity()) {
+                return ByteBuffer.wrap(names);
+            }
+            buffer.put(names);
+        } else {
+            if (response.length() > buffer.capacity()) {
+                return ByteBuffer.wrap(response.getBytes());
+            }
+            for (int i = 0; i < response.length(); i++) {
+                char c = response.charAt(i);
+                if (c >= 0x80) {
+                    return ByteBuffer.wrap(response.getBytes());
+                }
+                buffer.put((byte) c);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static boolean isNumber(String value) {
+        try {
+            Long.parseLong(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 
     private void handleQuit() {
@@ -123,4 +511,8 @@ public class CommandProcessor {
             }
         }).start();
     }
+
+    public void close() {
+        serverForwarder.close();
+    }
 }
\ No newline at end of file
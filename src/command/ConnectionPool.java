@@ -0,0 +1,425 @@
+package command;
+
+import metrics.Metrics;
+import model.ServerInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.ToIntFunction;
+
+/**
+ * Pula trwałych, nieblokujących połączeń TCP do serwerów (osobna dla każdego ServerInfo).
+ * Połączenia są używane ponownie, bezczynne są usuwane po IDLE_TIMEOUT, a bezczynne
+ * połączenie które stało się czytelne (EOF albo śmieci) jest od razu zamykane.
+ * Timeout jest osobny dla każdego serwera i może się zmieniać między zapytaniami;
+ * nowe połączenie dostaje go dwa razy - na nawiązanie i na odpowiedź.
+ * Cały stan puli żyje w wątku BackendEventLoop.
+ */
+class ConnectionPool {
+    private static final int MAX_PER_BACKEND = 32;
+    private static final long IDLE_TIMEOUT_MS = 30_000;
+    private static final long EVICTION_INTERVAL_MS = 5_000;
+    private static final long KEEPALIVE_RETRY_MS = 30_000;
+    private static final int READ_BUFFER_SIZE = 4096;
+    // czekanie na wolne połączenie nie zależy od adaptacyjnego timeoutu odczytu
+    private static final long QUEUE_TIMEOUT_MS = 2_000;
+
+    private final BackendEventLoop loop;
+    private final ToIntFunction<ServerInfo> timeouts;
+    private final Map<ServerInfo, BackendPool> pools;
+    private boolean running;
+
+    /**
+     * @param timeouts timeout zapytania w ms dla danego serwera
+     */
+    ConnectionPool(BackendEventLoop loop, ToIntFunction<ServerInfo> timeouts) {
+        this.loop = loop;
+        this.timeouts = timeouts;
+        this.pools = new HashMap<>();
+        this.running = true;
+        loop.execute(() -> loop.schedule(EVICTION_INTERVAL_MS, this::evictIdle));
+    }
+
+    /**
+     * Wysyła komendę i zwraca jedną linię odpowiedzi. Jeśli ponownie użyte połączenie
+     * okazało się zamknięte przez serwer, komenda idzie jeszcze raz na nowym.
+     */
+    public CompletableFuture<String> execute(ServerInfo server, String command) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        loop.execute(() -> {
+            if (!running) {
+                result.completeExceptionally(new IOException("pula zamknięta"));
+                return;
+            }
+            poolFor(server).submit(new Request(command, result));
+        });
+        return result;
+    }
+
+    /**
+     * Wysyła komendę bez czekania na odpowiedź (np. QUIT), zawsze na nowym połączeniu.
+     */
+    public CompletableFuture<Void> send(ServerInfo server, String command) {
+        CompletableFuture<String> written = new CompletableFuture<>();
+        loop.execute(() -> {
+            Request request = new Request(command, written);
+            request.oneWay = true;
+            poolFor(server).open(request);
+        });
+        return written.thenApply(ignored -> null);
+    }
+
+    public void close() {
+        loop.execute(() -> {
+            running = false;
+            for (BackendPool pool : pools.values()) {
+                for (TcpConnection connection : new ArrayList<>(pool.idle)) {
+                    connection.close();
+                }
+            }
+        });
+    }
+
+    private BackendPool poolFor(ServerInfo server) {
+        return pools.computeIfAbsent(server, BackendPool::new);
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (BackendPool pool : pools.values()) {
+            List<TcpConnection> expired = new ArrayList<>();
+            for (TcpConnection connection : pool.idle) {
+                if (now - connection.lastUsed > IDLE_TIMEOUT_MS) {
+                    expired.add(connection);
+                }
+            }
+            for (TcpConnection connection : expired) {
+                connection.close();
+            }
+        }
+        if (running) {
+            loop.schedule(EVICTION_INTERVAL_MS, this::evictIdle);
+        }
+    }
+
+    private static final class Request {
+        private final String command;
+        private final CompletableFuture<String> result;
+        private boolean retried;
+        private boolean oneWay;
+        private BackendEventLoop.Timer queueTimer;
+
+        Request(String command, CompletableFuture<String> result) {
+            this.command = command;
+            this.result = result;
+        }
+    }
+
+    private class BackendPool {
+        private final ServerInfo server;
+        private final ArrayDeque<TcpConnection> idle = new ArrayDeque<>();
+        private final ArrayDeque<Request> waiting = new ArrayDeque<>();
+        private int active;
+        private long keepAliveDisabledUntil;
+
+        BackendPool(ServerInfo server) {
+            this.server = server;
+        }
+
+        void submit(Request request) {
+            waiting.addLast(request);
+            request.queueTimer = loop.schedule(QUEUE_TIMEOUT_MS, () -> {
+                if (waiting.remove(request)) {
+                    Metrics.increment("pool.exhausted");
+                    request.result.completeExceptionally(new PoolExhaustedException("brak wolnych połączeń w puli"));
+                }
+            });
+            dispatch();
+        }
+
+        int timeout() {
+            return timeouts.applyAsInt(server);
+        }
+
+        void dispatch() {
+            while (!waiting.isEmpty()) {
+                TcpConnection connection = idle.pollFirst();
+                if (connection != null) {
+                    active++;
+                    connection.start(takeWaiting(), true);
+                } else if (active < MAX_PER_BACKEND) {
+                    open(takeWaiting());
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private Request takeWaiting() {
+            Request request = waiting.pollFirst();
+            request.queueTimer.cancel();
+            return request;
+        }
+
+        void open(Request request) {
+            active++;
+            TcpConnection connection = new TcpConnection(this);
+            try {
+                connection.connect(loop.resolve(server));
+                connection.start(request, false);
+            } catch (IOException e) {
+                connection.close();
+                request.result.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * Połączenie skończyło obsługę komendy i nadaje się do ponownego użycia.
+         */
+        void release(TcpConnection connection) {
+            if (!running || !isKeepAliveEnabled()) {
+                connection.close();
+                return;
+            }
+            if (!waiting.isEmpty()) {
+                connection.start(takeWaiting(), true);
+            } else {
+                active--;
+                connection.lastUsed = System.currentTimeMillis();
+                idle.addFirst(connection);
+            }
+        }
+
+        void closed(TcpConnection connection, boolean wasIdle) {
+            if (wasIdle) {
+                idle.remove(connection);
+            } else {
+                active--;
+            }
+            dispatch();
+        }
+
+        /**
+         * Serwer zamyka połączenie po każdej odpowiedzi - przez jakiś czas nie trzymamy połączeń.
+         */
+        void disableKeepAlive() {
+            keepAliveDisabledUntil = System.currentTimeMillis() + KEEPALIVE_RETRY_MS;
+        }
+
+        boolean isKeepAliveEnabled() {
+            return System.currentTimeMillis() >= keepAliveDisabledUntil;
+        }
+    }
+
+    private enum State { CONNECTING, BUSY, IDLE, CLOSED }
+
+    private class TcpConnection implements BackendEventLoop.ChannelHandler {
+        private final BackendPool pool;
+        private final ByteBuffer readBuffer;
+        private final ByteArrayOutputStream line;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private State state;
+        private boolean connected;
+        private Request current;
+        private boolean reused;
+        private ByteBuffer pendingWrite;
+        private BackendEventLoop.Timer timer;
+        private long lastUsed;
+        private long respondedAt;
+
+        TcpConnection(BackendPool pool) {
+            this.pool = pool;
+            this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            this.line = new ByteArrayOutputStream();
+            this.state = State.CONNECTING;
+        }
+
+        void connect(InetSocketAddress address) throws IOException {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            connected = channel.connect(address);
+            key = loop.register(channel, connected ? 0 : SelectionKey.OP_CONNECT, this);
+        }
+
+        void start(Request request, boolean reused) {
+            this.current = request;
+            this.reused = reused;
+            this.state = State.BUSY;
+            this.line.reset();
+            this.pendingWrite = ByteBuffer.wrap((request.command + "\n").getBytes());
+            int timeout = pool.timeout();
+            this.timer = loop.schedule(reused ? timeout : 2L * timeout, this::onTimeout);
+            if (connected) {
+                write();
+            }
+        }
+
+        @Override
+        public void onReady(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    connected = true;
+                    write();
+                    return;
+                }
+                if (key.isWritable()) {
+                    write();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void write() {
+            try {
+                channel.write(pendingWrite);
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            if (pendingWrite.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (current.oneWay) {
+                finish(current);
+                close();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void read() throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                onEof();
+                return;
+            }
+            readBuffer.flip();
+
+            if (state == State.IDLE) {
+                // serwer nie powinien nic wysyłać do bezczynnego połączenia
+                close();
+                return;
+            }
+
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    String response = line.toString().trim();
+                    if (readBuffer.hasRemaining()) {
+                        // nadmiarowe dane po odpowiedzi - połączenie nie nadaje się do ponownego użycia
+                        Request request = current;
+                        finish(request);
+                        close();
+                        request.result.complete(response);
+                    } else {
+                        complete(response);
+                    }
+                    return;
+                }
+                line.write(b);
+            }
+        }
+
+        private void onEof() {
+            if (state == State.IDLE) {
+                // zamknięte tuż po odpowiedzi - serwer nie trzyma połączeń
+                if (System.currentTimeMillis() - respondedAt < pool.timeout()) {
+                    pool.disableKeepAlive();
+                }
+                close();
+                return;
+            }
+            if (reused && line.size() == 0 && !current.retried) {
+                Request request = current;
+                request.retried = true;
+                finish(null);
+                close();
+                pool.disableKeepAlive();
+                pool.open(request);
+                return;
+            }
+            fail(new IOException("serwer zamknął połączenie"));
+        }
+
+        private void onTimeout() {
+            fail(new SocketTimeoutException("Read timed out"));
+        }
+
+        private void complete(String response) {
+            Request request = current;
+            finish(request);
+            respondedAt = System.currentTimeMillis();
+            state = State.IDLE;
+            pool.release(this);
+            request.result.complete(response);
+        }
+
+        private void fail(IOException e) {
+            Request request = current;
+            finish(request);
+            close();
+            if (request != null) {
+                request.result.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * Kończy obsługę bieżącej komendy (timer, stan); null = komenda przekazana dalej.
+         */
+        private void finish(Request request) {
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+            if (request != null && request.oneWay) {
+                request.result.complete(null);
+            }
+            current = null;
+            if (key != null && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void close() {
+            if (state == State.CLOSED) {
+                return;
+            }
+            boolean wasIdle = state == State.IDLE && pool.idle.contains(this);
+            state = State.CLOSED;
+            if (timer != null) {
+                timer.cancel();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                // Ignoruje
+            }
+            pool.closed(this, wasIdle);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package command;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limit dodatkowych zapytań (hedge). Każde zapytanie dokłada ułamek żetonu,
+ * każdy hedge zużywa cały - przy 10% na 100 odczytów przypada najwyżej
+ * 10 hedge'y, a zapas pozwala na krótką serię. Gdy backend zwalnia dla
+ * wszystkich, hedge'e nie podwajają mu obciążenia.
+ */
+final class HedgeBudget {
+    private static final long SCALE = 1000;
+    private static final long MAX_BURST = 10;
+
+    private final long depositPerRequest;
+    private final AtomicLong tokens = new AtomicLong();
+
+    /**
+     * @param percent najwyżej tyle procent zapytań może dostać hedge
+     */
+    HedgeBudget(int percent) {
+        this.depositPerRequest = SCALE * percent / 100;
+    }
+
+    void onRequest() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current >= MAX_BURST * SCALE) {
+                return;
+            }
+        } while (!tokens.compareAndSet(current, Math.min(MAX_BURST * SCALE, current + depositPerRequest)));
+    }
+
+    boolean tryAcquire() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < SCALE) {
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - SCALE));
+        return true;
+    }
+}
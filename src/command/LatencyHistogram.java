@@ -0,0 +1,89 @@
+package command;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram czasów odpowiedzi w stylu HdrHistogram: przedziały rosnące
+ * wykładniczo, każdy podzielony na SUB_BUCKETS równych części, więc błąd
+ * względny percentyla to najwyżej ~6% w całym zakresie od 1 us do ~12 dni.
+ * Zapis to jedno atomowe zwiększenie licznika, bez blokad.
+ * Liczy dwa okna po WINDOW_NANOS - percentyle opisują ostatnie 10-20 s ruchu.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_BIT = 40;
+    private static final int BUCKETS = 2 * SUB_BUCKETS + (MAX_BIT - SUB_BITS - 1) * SUB_BUCKETS;
+    private static final long WINDOW_NANOS = 10_000_000_000L;
+
+    private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+    private volatile AtomicLongArray previous = new AtomicLongArray(BUCKETS);
+    private volatile long windowStart = System.nanoTime();
+
+    void record(long micros) {
+        rotateIfDue();
+        current.incrementAndGet(index(Math.max(0, micros)));
+    }
+
+    /**
+     * Wartość w us, poniżej której leży podany ułamek pomiarów (np. 0.95),
+     * albo -1 gdy w obu oknach jest mniej niż minSamples pomiarów.
+     */
+    long percentile(double fraction, long minSamples) {
+        rotateIfDue();
+        AtomicLongArray a = current;
+        AtomicLongArray b = previous;
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += a.get(i) + b.get(i);
+        }
+        if (total < Math.max(1, minSamples)) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += a.get(i) + b.get(i);
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    private void rotateIfDue() {
+        long start = windowStart;
+        if (System.nanoTime() - start < WINDOW_NANOS) {
+            return;
+        }
+        synchronized (this) {
+            if (windowStart == start) {
+                previous = current;
+                current = new AtomicLongArray(BUCKETS);
+                windowStart = System.nanoTime();
+            }
+        }
+    }
+
+    static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int msb = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_BIT);
+        if (msb == MAX_BIT) {
+            return BUCKETS - 1;
+        }
+        int shift = msb - SUB_BITS;
+        int top = (int) (value >>> shift) - SUB_BUCKETS;
+        return 2 * SUB_BUCKETS + (msb - SUB_BITS - 1) * SUB_BUCKETS + top;
+    }
+
+    static long upperBound(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int msb = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS + 1;
+        int top = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((long) (top + 1) << (msb - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,16 @@
+package command;
+
+import java.io.IOException;
+
+/**
+ * Zapytanie nie doczekało się wolnego połączenia w puli. Serwer mógł być
+ * zdrowy - po prostu wszystkie połączenia były zajęte - więc taki błąd
+ * nie liczy się do bezpiecznika ani do statystyk backendu.
+ */
+class PoolExhaustedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    PoolExhaustedException(String message) {
+        super(message);
+    }
+}
@@ -1,79 +1,327 @@
 package command;
 
+import metrics.Metrics;
 import model.Protocol;
 import model.ServerInfo;
-import java.io.*;
-import java.net.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ServerForwarder {
-    private static final int TIMEOUT = 2000;
+    // dopóki backend nie ma dość pomiarów na własny timeout
+    private static final int DEFAULT_TIMEOUT = 2000;
     private static final int BUFFER_SIZE = 65535;
+    private static final long PROBE_INTERVAL = 500;
+    // każdy backend odpowiada na to szybko (NA), to wystarczy jako znak życia
+    private static final String PROBE_COMMAND = "GET VALUE __health_probe__";
 
-    public String forwardToServer(ServerInfo server, String command) {
-        System.out.println("      → Przekierowanie do " + server);
+    private final BackendEventLoop eventLoop;
+    private final ConnectionPool connectionPool;
+    private final UdpTransport udpTransport;
+    private final ConcurrentHashMap<ServerInfo, BackendLoad> loads = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ServerInfo, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService prober;
+    private volatile double hedgePercentile;
+    private volatile HedgeBudget hedgeBudget;
+
+    public ServerForwarder() {
         try {
-            if (server.getProtocol() == Protocol.TCP) {
-                return sendTCP(server, command, true);
-            } else {
-                return sendUDP(server, command, true);
-            }
+            this.eventLoop = new BackendEventLoop("Backend-IO");
         } catch (IOException e) {
-            System.err.println("Error połączenia z " + server + ": " + e.getMessage());
-            return "NA";
+            throw new UncheckedIOException("nie można utworzyć selektora", e);
         }
+        this.connectionPool = new ConnectionPool(eventLoop, this::timeoutFor);
+        this.udpTransport = new UdpTransport(eventLoop, this::timeoutFor, BUFFER_SIZE);
+        this.prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Health-Probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        prober.scheduleWithFixedDelay(this::probeOpenCircuits, PROBE_INTERVAL, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
     }
 
-    public void sendWithoutResponse(ServerInfo server, String command) {
-        try {
-            if (server.getProtocol() == Protocol.TCP) {
-                sendTCP(server, command, false);
-            } else {
-                sendUDP(server, command, false);
-            }
-        } catch (IOException ignored) {
-           // ignorujemy
+    public String forwardToServer(ServerInfo server, String command) {
+        return forwardToServerAsync(server, command).join();
+    }
+
+    /**
+     * Wysyła komendę bez blokowania wątku. Future zawsze kończy się odpowiedzią
+     * (przy błędzie "NA"), nigdy wyjątkiem.
+     */
+    public CompletableFuture<String> forwardToServerAsync(ServerInfo server, String command) {
+        CircuitBreaker breaker = breakerOf(server);
+        if (!breaker.allowRequest()) {
+            // backend uznany za martwy - NA od razu, bez czekania na timeout
+            Metrics.increment("circuit.rejected");
+            return CompletableFuture.completedFuture("NA");
         }
+        System.out.println("      → Przekierowanie do " + server);
+        BackendLoad load = loadOf(server);
+        long start = load.begin();
+
+        return send(server, command).handle((result, error) -> {
+            if (unwrap(error) instanceof PoolExhaustedException) {
+                // zajęta pula to nie awaria serwera
+                load.cancel();
+                breaker.onAbandoned();
+                System.err.println("Brak połączenia do " + server + ": " + unwrap(error).getMessage());
+                return "NA";
+            }
+            load.end(start, error == null);
+            if (error != null) {
+                breaker.onFailure();
+                System.err.println("Error połączenia z " + server + ": " + unwrap(error).getMessage());
+                return "NA";
+            }
+            breaker.onSuccess();
+            System.out.println("      <- Server Odpowiedz: " + result);
+            return result != null ? result : "NA";
+        });
     }
 
+    /**
+     * Włącza hedging odczytów: gdy replika nie odpowie w czasie swojego
+     * percentyla, to samo zapytanie idzie do drugiej repliki.
+     *
+     * @param percentile percentyl czasu odpowiedzi (np. 95), 0 = wyłączone
+     * @param budgetPercent najwyżej tyle procent zapytań może dostać hedge
+     */
+    public void setHedging(int percentile, int budgetPercent) {
+        this.hedgeBudget = new HedgeBudget(budgetPercent);
+        this.hedgePercentile = percentile / 100.0;
+    }
 
-    private String sendTCP(ServerInfo server, String command, boolean waitForResponse) throws IOException {
-        try (Socket socket = new Socket()) {
-            socket.connect(new InetSocketAddress(server.getAddress(), server.getPort()), TIMEOUT);
-            socket.setSoTimeout(TIMEOUT);
+    /**
+     * Odczyt z jednej z replik. Gdy wybrana replika nie odpowie w czasie swojego
+     * percentyla (np. p95), to samo zapytanie idzie do drugiej i wygrywa pierwsza
+     * odpowiedź OK. Bez OK od nikogo zwraca odpowiedź pierwszej repliki.
+     * Liczbę dodatkowych zapytań ogranicza HedgeBudget.
+     */
+    public CompletableFuture<String> forwardHedged(List<ServerInfo> replicas, String command) {
+        ServerInfo primary = chooseReplica(replicas);
+        double percentile = hedgePercentile;
+        HedgeBudget budget = hedgeBudget;
+        if (replicas.size() < 2 || percentile <= 0) {
+            return forwardToServerAsync(primary, command);
+        }
+        budget.onRequest();
+        long delay = loadOf(primary).hedgeDelayMillis(percentile);
+        if (delay < 0) {
+            // za mało pomiarów, żeby wiedzieć, co jest "wolne"
+            return forwardToServerAsync(primary, command);
+        }
 
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            out.println(command);
+        CompletableFuture<String> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        String[] primaryResponse = new String[1];
+        forwardToServerAsync(primary, command).thenAccept(response -> {
+            synchronized (primaryResponse) {
+                primaryResponse[0] = response;
+            }
+            finishHedged(result, pending, response, primaryResponse, false);
+        });
 
-            if (waitForResponse) {
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                String response = in.readLine();
-                System.out.println("      <- Server Odpowiedz: " + response);
-                return response != null ? response : "NA";
+        eventLoop.execute(() -> eventLoop.schedule(delay, () -> {
+            if (result.isDone()) {
+                return;
             }
-            return null;
+            ServerInfo backup = chooseBackup(replicas, primary);
+            if (backup == null) {
+                return;
+            }
+            if (!budget.tryAcquire()) {
+                Metrics.increment("hedge.denied");
+                return;
+            }
+            int current;
+            do {
+                current = pending.get();
+                if (current == 0) {
+                    return;
+                }
+            } while (!pending.compareAndSet(current, current + 1));
+            Metrics.increment("hedge.sent");
+            forwardToServerAsync(backup, command).thenAccept(response ->
+                    finishHedged(result, pending, response, primaryResponse, true));
+        }));
+        return result;
+    }
+
+    private static void finishHedged(CompletableFuture<String> result, AtomicInteger pending, String response,
+                                     String[] primaryResponse, boolean fromHedge) {
+        if (response.startsWith("OK")) {
+            if (result.complete(response) && fromHedge) {
+                Metrics.increment("hedge.won");
+            }
+        } else if (pending.decrementAndGet() == 0) {
+            String fallback;
+            synchronized (primaryResponse) {
+                fallback = primaryResponse[0];
+            }
+            result.complete(fallback != null ? fallback : response);
         }
     }
 
-    private String sendUDP(ServerInfo server, String command, boolean waitForResponse) throws IOException {
-        try (DatagramSocket socket = new DatagramSocket()) {
-            socket.setSoTimeout(TIMEOUT);
+    private ServerInfo chooseBackup(List<ServerInfo> replicas, ServerInfo primary) {
+        List<ServerInfo> others = new ArrayList<>(replicas.size() - 1);
+        for (ServerInfo replica : replicas) {
+            if (!replica.equals(primary) && isAvailable(replica)) {
+                others.add(replica);
+            }
+        }
+        return others.isEmpty() ? null : chooseReplica(others);
+    }
 
-            byte[] sendData = (command + "\n").getBytes();
-            InetAddress address = InetAddress.getByName(server.getAddress());
+    /**
+     * Wybór repliki metodą dwóch losowych (power of two choices): z dwóch losowo
+     * wybranych serwerów wygrywa ten o mniejszym koszcie - średnie opóźnienie
+     * razy liczba zapytań w locie. Prawie tak dobre jak najmniej obciążony
+     * serwer, bez przeglądania wszystkich i bez stadnego wybierania jednego.
+     */
+    public ServerInfo chooseReplica(List<ServerInfo> replicas) {
+        int count = replicas.size();
+        if (count == 1) {
+            return replicas.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(count);
+        int second = random.nextInt(count - 1);
+        if (second >= first) {
+            second++;
+        }
+        ServerInfo a = replicas.get(first);
+        ServerInfo b = replicas.get(second);
+        boolean aUp = isAvailable(a);
+        boolean bUp = isAvailable(b);
+        if (aUp != bUp) {
+            return aUp ? a : b;
+        }
+        if (!aUp) {
+            // obie wylosowane mają otwarty bezpiecznik - może jest jakaś inna
+            for (ServerInfo replica : replicas) {
+                if (isAvailable(replica)) {
+                    return replica;
+                }
+            }
+        }
+        return loadOf(a).cost() <= loadOf(b).cost() ? a : b;
+    }
 
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, address, server.getPort());
-            socket.send(sendPacket);
+    /**
+     * false gdy bezpiecznik backendu jest otwarty - discovery i wybór repliki go pomijają.
+     */
+    public boolean isAvailable(ServerInfo server) {
+        CircuitBreaker breaker = breakers.get(server);
+        return breaker == null || breaker.isAvailable();
+    }
 
-            if (waitForResponse) {
-                byte[] receiveData = new byte[BUFFER_SIZE];
-                DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-                socket.receive(receivePacket);
+    /**
+     * Timeout zapytań do backendu w ms wyliczony z jego czasów odpowiedzi
+     * (zob. BackendLoad.timeoutMillis), -1 gdy jeszcze nie ma dość pomiarów.
+     */
+    public int adaptiveTimeout(ServerInfo server) {
+        return loadOf(server).timeoutMillis();
+    }
 
-                String response = new String(receivePacket.getData(), 0, receivePacket.getLength()).trim();
-                System.out.println("      <- Server Odpowiedz: " + response);
-                return response;
+    /**
+     * Przy otwartym bezpieczniku idą tylko sondy i zapytanie próbne - dostają
+     * pełny timeout, żeby zmierzyć serwer, który zwolnił, a nie umarł.
+     */
+    private int timeoutFor(ServerInfo server) {
+        if (!isAvailable(server)) {
+            return DEFAULT_TIMEOUT;
+        }
+        int timeout = adaptiveTimeout(server);
+        return timeout > 0 ? timeout : DEFAULT_TIMEOUT;
+    }
+
+    private CompletableFuture<String> send(ServerInfo server, String command) {
+        if (server.getProtocol() == Protocol.TCP) {
+            return connectionPool.execute(server, command);
+        }
+        return udpTransport.request(server, command, true);
+    }
+
+    /**
+     * Aktywne sprawdzanie martwych backendów w tle: każda odpowiedź zamyka
+     * bezpiecznik, zanim trafi na niego zapytanie klienta.
+     */
+    private void probeOpenCircuits() {
+        for (Map.Entry<ServerInfo, CircuitBreaker> entry : breakers.entrySet()) {
+            CircuitBreaker breaker = entry.getValue();
+            if (!breaker.startProbe()) {
+                continue;
+            }
+            Metrics.increment("circuit.probes");
+            BackendLoad load = loadOf(entry.getKey());
+            long start = load.begin();
+            try {
+                send(entry.getKey(), PROBE_COMMAND).whenComplete((result, error) -> {
+                    if (unwrap(error) instanceof PoolExhaustedException) {
+                        load.cancel();
+                    } else {
+                        load.end(start, error == null);
+                    }
+                    breaker.endProbe();
+                    if (error == null) {
+                        breaker.onSuccess();
+                    }
+                });
+            } catch (RuntimeException e) {
+                load.end(start, false);
+                breaker.endProbe();
             }
-            return null;
         }
     }
+
+    private CircuitBreaker breakerOf(ServerInfo server) {
+        CircuitBreaker breaker = breakers.get(server);
+        if (breaker == null) {
+            breaker = breakers.computeIfAbsent(server, s -> new CircuitBreaker(s.getAddress() + ":" + s.getPort()));
+        }
+        return breaker;
+    }
+
+    private BackendLoad loadOf(ServerInfo server) {
+        BackendLoad load = loads.get(server);
+        if (load == null) {
+            load = loads.computeIfAbsent(server, s -> new BackendLoad(s.getAddress() + ":" + s.getPort()));
+        }
+        return load;
+    }
+
+    public void sendWithoutResponse(ServerInfo server, String command) {
+        CompletableFuture<?> sent;
+        if (server.getProtocol() == Protocol.TCP) {
+            sent = connectionPool.send(server, command);
+        } else {
+            sent = udpTransport.request(server, command, false);
+        }
+        try {
+            sent.join();
+        } catch (CompletionException ignored) {
+            // ignorujemy
+        }
+    }
+
+    public void close() {
+        prober.shutdownNow();
+        connectionPool.close();
+        eventLoop.close();
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,51 @@
+package command;
+
+import metrics.Metrics;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Łączy równoczesne zapytania o ten sam klucz: pierwsze idzie do serwera,
+ * kolejne czekają na jego wynik zamiast wysyłać własne.
+ */
+class SingleFlight {
+    private final ConcurrentHashMap<String, CompletableFuture<String>> calls = new ConcurrentHashMap<>();
+
+    CompletableFuture<String> execute(String key, Supplier<CompletableFuture<String>> call) {
+        CompletableFuture<String> mine = new CompletableFuture<>();
+        CompletableFuture<String> existing = calls.putIfAbsent(key, mine);
+        if (existing != null) {
+            Metrics.increment("singleflight.coalesced");
+            return existing;
+        }
+
+        Metrics.increment("singleflight.leaders");
+        CompletableFuture<String> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            // nikt nie dokończy mine - bez tego kolejne odczyty klucza czekałyby w nieskończoność
+            calls.remove(key, mine);
+            mine.completeExceptionally(e);
+            return mine;
+        }
+        result.whenComplete((value, error) -> {
+            calls.remove(key, mine);
+            if (error != null) {
+                mine.completeExceptionally(error);
+            } else {
+                mine.complete(value);
+            }
+        });
+        return mine;
+    }
+
+    /**
+     * Po zapisie kolejne odczyty nie mogą dołączyć do zapytania wysłanego przed nim.
+     */
+    void forget(String key) {
+        calls.remove(key);
+    }
+}
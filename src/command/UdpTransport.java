@@ -0,0 +1,474 @@
+package command;
+
+import metrics.Metrics;
+import model.ServerInfo;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToIntFunction;
+
+/**
+ * Nieblokujące zapytania UDP do serwerów obsługiwane w wątku BackendEventLoop.
+ *
+ * Każde zapytanie dostaje identyfikator doklejany na końcu jako " #id".
+ * Serwer, który odsyła go w odpowiedzi, dostaje jeden stały DatagramChannel,
+ * na którym równolegle czeka wiele zapytań - odpowiedzi dopasowujemy po id.
+ * Dopóki nie wiemy, czy serwer odsyła id (albo gdy go nie odsyła), każde
+ * zapytanie idzie osobnym kanałem jak dawniej.
+ *
+ * Zapytania z innych wątków trafiają do kolejki i są wysyłane partiami,
+ * a przy każdym wybudzeniu odczytujemy wszystkie czekające datagramy.
+ *
+ * Zgubiony datagram nie kosztuje całego timeoutu: po czasie RTO zapytanie
+ * jest wysyłane ponownie z tym samym id. RTO liczymy osobno dla każdego
+ * serwera z mierzonych czasów odpowiedzi (Jacobson/Karels, jak w TCP).
+ * Odpowiedzi spóźnione i powtórzone (po retransmisji) są odrzucane.
+ */
+class UdpTransport {
+    private static final int MAX_RECEIVE_BATCH = 64;
+    private static final long INITIAL_RTO = 250;
+    private static final long MIN_RTO = 10;
+    // tyle odpowiedzi bez id z rzędu, zanim uznamy, że serwer przestał odsyłać id
+    private static final int MAX_UNTAGGED = 8;
+
+    private final BackendEventLoop loop;
+    private final ToIntFunction<ServerInfo> timeouts;
+    private final Queue<Exchange> outbound;
+    private final AtomicBoolean flushScheduled;
+
+    // tylko z wątku pętli
+    private final Map<ServerInfo, Backend> backends;
+    private final ByteBuffer receiveBuffer;
+    private long nextId;
+
+    /**
+     * @param timeouts timeout zapytania w ms dla danego serwera, górna granica RTO
+     */
+    UdpTransport(BackendEventLoop loop, ToIntFunction<ServerInfo> timeouts, int bufferSize) {
+        this.loop = loop;
+        this.timeouts = timeouts;
+        this.outbound = new ConcurrentLinkedQueue<>();
+        this.flushScheduled = new AtomicBoolean();
+        this.backends = new HashMap<>();
+        this.receiveBuffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    CompletableFuture<String> request(ServerInfo server, String command, boolean waitForResponse) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        if (!waitForResponse) {
+            loop.execute(() -> sendOneWay(server, command, result));
+            return result;
+        }
+
+        outbound.add(new Exchange(server, command, result));
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+        return result;
+    }
+
+    /**
+     * Wysyła wszystko co czeka w kolejce - jedno zadanie w pętli na całą partię.
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        Exchange exchange;
+        while ((exchange = outbound.poll()) != null) {
+            start(exchange);
+        }
+    }
+
+    private void start(Exchange exchange) {
+        exchange.id = ++nextId;
+        Backend backend = backends.computeIfAbsent(exchange.server, Backend::new);
+        exchange.backend = backend;
+        exchange.timeout = timeouts.applyAsInt(exchange.server);
+        exchange.timer = loop.schedule(exchange.timeout,
+                () -> exchange.fail(new SocketTimeoutException("Receive timed out")));
+
+        try {
+            if (backend.echoesIds == Boolean.TRUE) {
+                backend.send(exchange);
+            } else {
+                new SeparateExchange(backend, exchange).send();
+            }
+        } catch (IOException e) {
+            exchange.fail(e);
+            return;
+        }
+        exchange.sentAt = System.nanoTime();
+        exchange.rto = backend.rto;
+        scheduleRetransmit(exchange);
+    }
+
+    private void scheduleRetransmit(Exchange exchange) {
+        exchange.retransmitTimer = loop.schedule(exchange.rto, () -> retransmit(exchange));
+    }
+
+    private void retransmit(Exchange exchange) {
+        if (exchange.result.isDone()) {
+            return;
+        }
+        exchange.retransmitted = true;
+        // wykładnicze wycofanie tylko dla tego zapytania - RTO serwera zmieniają pomiary
+        exchange.rto = Math.min(exchange.rto * 2, exchange.timeout);
+        Metrics.increment("udp.retransmits");
+        try {
+            exchange.transmit.run();
+        } catch (IOException e) {
+            exchange.fail(e);
+            return;
+        }
+        scheduleRetransmit(exchange);
+    }
+
+    private void sendOneWay(ServerInfo server, String command, CompletableFuture<String> result) {
+        DatagramChannel channel = null;
+        try {
+            channel = DatagramChannel.open();
+            channel.connect(loop.resolve(server));
+            channel.write(ByteBuffer.wrap((command + "\n").getBytes()));
+            result.complete(null);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    private interface Transmit {
+        void run() throws IOException;
+    }
+
+    /**
+     * Jedno zapytanie czekające na odpowiedź.
+     */
+    private class Exchange {
+        private final ServerInfo server;
+        private final String command;
+        private final CompletableFuture<String> result;
+        private long id;
+        private byte[] encoded;
+        private Backend backend;
+        private BackendEventLoop.Timer timer;
+        private BackendEventLoop.Timer retransmitTimer;
+        private Transmit transmit;
+        private Runnable onDone;
+        private long sentAt;
+        private long rto;
+        private long timeout;
+        private boolean retransmitted;
+
+        Exchange(ServerInfo server, String command, CompletableFuture<String> result) {
+            this.server = server;
+            this.command = command;
+            this.result = result;
+        }
+
+        ByteBuffer encode() {
+            if (encoded == null) {
+                encoded = (command + " #" + id + "\n").getBytes();
+            }
+            return ByteBuffer.wrap(encoded);
+        }
+
+        void complete(String response) {
+            if (finish()) {
+                // algorytm Karna: czas z retransmitowanego zapytania jest niejednoznaczny
+                if (!retransmitted) {
+                    backend.sample((System.nanoTime() - sentAt) / 1_000_000.0);
+                } else {
+                    backend.backoff();
+                }
+                result.complete(response);
+            }
+        }
+
+        void fail(IOException e) {
+            if (finish()) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        private boolean finish() {
+            if (result.isDone()) {
+                return false;
+            }
+            timer.cancel();
+            if (retransmitTimer != null) {
+                retransmitTimer.cancel();
+            }
+            if (onDone != null) {
+                onDone.run();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Stan jednego serwera: czy odsyła id, wspólny kanał (gdy odsyła) i estymator RTO.
+     */
+    private class Backend implements BackendEventLoop.ChannelHandler {
+        private final ServerInfo server;
+        private final Map<Long, Exchange> pending;
+        private final String rtoMetric;
+        private Boolean echoesIds;
+        private int untagged;
+        private DatagramChannel channel;
+        private double srtt;
+        private double rttvar;
+        private long rto;
+
+        Backend(ServerInfo server) {
+            this.server = server;
+            this.pending = new HashMap<>();
+            this.rtoMetric = "udp.rto." + server.getAddress() + ":" + server.getPort();
+            this.srtt = -1;
+            this.rto = Math.min(INITIAL_RTO, timeouts.applyAsInt(server));
+        }
+
+        /**
+         * Nowy pomiar czasu odpowiedzi (RFC 6298).
+         */
+        void sample(double rttMs) {
+            if (srtt < 0) {
+                srtt = rttMs;
+                rttvar = rttMs / 2;
+            } else {
+                rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rttMs);
+                srtt = 0.875 * srtt + 0.125 * rttMs;
+            }
+            setRto((long) Math.ceil(srtt + Math.max(1, 4 * rttvar)));
+        }
+
+        /**
+         * Odpowiedź przyszła dopiero po retransmisji: podwajamy RTO do następnego
+         * czystego pomiaru, żeby wolny serwer nie dostawał ciągle powtórzeń
+         * zanim zdąży odpowiedzieć.
+         */
+        void backoff() {
+            setRto(rto * 2);
+        }
+
+        private void setRto(long value) {
+            rto = Math.max(MIN_RTO, Math.min(value, timeouts.applyAsInt(server)));
+            Metrics.set(rtoMetric, rto);
+        }
+
+        void send(Exchange exchange) throws IOException {
+            if (channel == null) {
+                channel = DatagramChannel.open();
+                channel.configureBlocking(false);
+                channel.connect(loop.resolve(server));
+                loop.register(channel, SelectionKey.OP_READ, this);
+            }
+
+            pending.put(exchange.id, exchange);
+            exchange.onDone = () -> pending.remove(exchange.id);
+            exchange.transmit = () -> write(exchange);
+            write(exchange);
+        }
+
+        private void write(Exchange exchange) throws IOException {
+            if (channel == null) {
+                throw new IOException("Kanał UDP zamknięty");
+            }
+            if (channel.write(exchange.encode()) == 0) {
+                throw new IOException("Bufor wysyłania UDP pełny");
+            }
+        }
+
+        @Override
+        public void onReady(SelectionKey key) {
+            for (int i = 0; i < MAX_RECEIVE_BATCH; i++) {
+                receiveBuffer.clear();
+                try {
+                    if (channel.receive(receiveBuffer) == null) {
+                        return;
+                    }
+                } catch (PortUnreachableException e) {
+                    failAll(e);
+                    return;
+                } catch (IOException e) {
+                    failAll(e);
+                    closeChannel(key);
+                    return;
+                }
+                receiveBuffer.flip();
+                onResponse(new String(receiveBuffer.array(), 0, receiveBuffer.limit()).trim());
+            }
+        }
+
+        private void onResponse(String response) {
+            long id = parseId(response);
+            if (id < 0) {
+                onUntagged(response);
+                return;
+            }
+
+            untagged = 0;
+            Exchange exchange = pending.get(id);
+            if (exchange == null) {
+                // po timeoucie albo druga odpowiedź na retransmitowane zapytanie
+                Metrics.increment("udp.late");
+                return;
+            }
+            exchange.complete(stripId(response));
+        }
+
+        /**
+         * Odpowiedź bez id na wspólnym kanale nie przełącza od razu całego serwera.
+         * Gdy czeka tylko jedno zapytanie, to jest jego odpowiedź. Przy kilku nie wiadomo
+         * czyja - to błąd protokołu dla najstarszego z nich (serwer odpowiada po kolei),
+         * reszta czeka dalej na swoje id. Dopiero seria takich odpowiedzi przełącza
+         * serwer na osobne kanały.
+         */
+        private void onUntagged(String response) {
+            Metrics.increment("udp.untagged");
+            if (pending.size() == 1) {
+                pending.values().iterator().next().complete(response);
+            } else if (!pending.isEmpty()) {
+                oldestPending().fail(new IOException("Odpowiedź UDP bez id"));
+            }
+            if (++untagged >= MAX_UNTAGGED) {
+                System.out.println("[UDP] " + server + " nie odsyła id - osobne kanały");
+                echoesIds = Boolean.FALSE;
+                untagged = 0;
+            }
+        }
+
+        private Exchange oldestPending() {
+            Exchange oldest = null;
+            for (Exchange exchange : pending.values()) {
+                if (oldest == null || exchange.id < oldest.id) {
+                    oldest = exchange;
+                }
+            }
+            return oldest;
+        }
+
+        private void failAll(IOException e) {
+            List<Exchange> all = new ArrayList<>(pending.values());
+            for (Exchange exchange : all) {
+                exchange.fail(e);
+            }
+        }
+
+        private void closeChannel(SelectionKey key) {
+            key.cancel();
+            closeQuietly(channel);
+            channel = null;
+        }
+    }
+
+    /**
+     * Zapytanie wysłane własnym kanałem - dla serwerów, które nie odsyłają id.
+     * Przy okazji sprawdza, czy serwer jednak je odsyła.
+     */
+    private class SeparateExchange implements BackendEventLoop.ChannelHandler {
+        private final Backend backend;
+        private final Exchange exchange;
+        private DatagramChannel channel;
+        private SelectionKey key;
+
+        SeparateExchange(Backend backend, Exchange exchange) {
+            this.backend = backend;
+            this.exchange = exchange;
+        }
+
+        void send() throws IOException {
+            try {
+                channel = DatagramChannel.open();
+                channel.configureBlocking(false);
+                channel.connect(loop.resolve(exchange.server));
+                key = loop.register(channel, SelectionKey.OP_READ, this);
+                exchange.onDone = this::close;
+                exchange.transmit = () -> channel.write(exchange.encode());
+                channel.write(exchange.encode());
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void onReady(SelectionKey key) {
+            try {
+                receiveBuffer.clear();
+                if (channel.receive(receiveBuffer) == null) {
+                    return;
+                }
+            } catch (IOException e) {
+                exchange.fail(e);
+                return;
+            }
+            receiveBuffer.flip();
+            String response = new String(receiveBuffer.array(), 0, receiveBuffer.limit()).trim();
+
+            long id = parseId(response);
+            if (id == exchange.id) {
+                if (backend.echoesIds == null) {
+                    System.out.println("[UDP] " + exchange.server + " odsyła id - jeden wspólny kanał");
+                }
+                backend.echoesIds = Boolean.TRUE;
+                response = stripId(response);
+            } else if (backend.echoesIds == null) {
+                backend.echoesIds = Boolean.FALSE;
+            }
+            exchange.complete(response);
+        }
+
+        private void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Id z końcówki " #123" albo -1 gdy odpowiedź go nie ma.
+     */
+    static long parseId(String response) {
+        int hash = response.lastIndexOf(" #");
+        if (hash < 0 || hash + 2 == response.length()) {
+            return -1;
+        }
+        long id = 0;
+        for (int i = hash + 2; i < response.length(); i++) {
+            char c = response.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+
+    static String stripId(String response) {
+        return response.substring(0, response.lastIndexOf(" #"));
+    }
+
+    private static void closeQuietly(DatagramChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignoruje
+        }
+    }
+}
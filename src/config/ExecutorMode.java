@@ -0,0 +1,23 @@
+package config;
+
+/**
+ * Strategia wątków dla listenerów i przetwarzania komend
+ */
+public enum ExecutorMode {
+    CACHED,
+    BOUNDED,
+    VIRTUAL;
+
+    public static ExecutorMode parse(String value) {
+        try {
+            return ExecutorMode.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("nieznany executor: " + value + " (cached|bounded|virtual)");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.name();
+    }
+}
@@ -0,0 +1,22 @@
+package config;
+
+/**
+ * Rodzaj frontendu TCP proxy: wątek na połączenie albo pętle zdarzeń NIO
+ */
+public enum FrontendMode {
+    BLOCKING,
+    NIO;
+
+    public static FrontendMode parse(String value) {
+        try {
+            return FrontendMode.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("nieznany frontend: " + value + " (blocking|nio)");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.name();
+    }
+}
@@ -1,5 +1,6 @@
 package config;
 
+import discovery.HashRing;
 import model.ServerInfo;
 
 import java.util.ArrayList;
@@ -11,10 +12,42 @@ import java.util.List;
 public class ProxyConfig {
     private final int proxyPort;
     private final List<ServerInfo> servers;
+    private FrontendMode frontendMode;
+    private int eventLoops;
+    private ExecutorMode executorMode;
+    private int maxThreads;
+    private int queueSize;
+    private long refreshInterval;
+    private int cacheEntries;
+    private long cacheTtl;
+    private long cacheBytes;
+    private int udpShards;
+    private int virtualNodes;
+    private int hedgePercentile;
+    private int hedgeBudget;
+    private int rateLimit;
+    private int rateBurst;
+    private int maxConcurrency;
 
     public ProxyConfig(int proxyPort, List<ServerInfo> servers) {
         this.proxyPort = proxyPort;
         this.servers = new ArrayList<>(servers);
+        this.frontendMode = FrontendMode.BLOCKING;
+        this.eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        this.executorMode = ExecutorMode.CACHED;
+        this.maxThreads = 256;
+        this.queueSize = 1024;
+        this.refreshInterval = 30_000;
+        this.cacheEntries = 0;
+        this.cacheTtl = 1000;
+        this.cacheBytes = 64L * 1024 * 1024;
+        this.udpShards = 1;
+        this.virtualNodes = HashRing.DEFAULT_VIRTUAL_NODES;
+        this.hedgePercentile = 95;
+        this.hedgeBudget = 10;
+        this.rateLimit = 0;
+        this.rateBurst = -1;
+        this.maxConcurrency = 2000;
     }
 
     public int getProxyPort() {
@@ -25,6 +58,97 @@ public class ProxyConfig {
         return new ArrayList<>(servers);
     }
 
+    public FrontendMode getFrontendMode() {
+        return frontendMode;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public ExecutorMode getExecutorMode() {
+        return executorMode;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Odstęp ponownego odkrywania kluczy w ms (0 = wyłączone)
+     */
+    public long getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    /**
+     * Maksymalna liczba wpisów cache wartości (0 = cache wyłączony)
+     */
+    public int getCacheEntries() {
+        return cacheEntries;
+    }
+
+    public long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    /**
+     * Liczba pętli odbioru UDP na osobnych gniazdach z SO_REUSEPORT (1 = jedno gniazdo)
+     */
+    public int getUdpShards() {
+        return udpShards;
+    }
+
+    /**
+     * Liczba wirtualnych węzłów na serwer w pierścieniu dla nowych kluczy
+     */
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    /**
+     * Percentyl czasu odpowiedzi repliki, po którym GET idzie też do drugiej (0 = bez hedgingu)
+     */
+    public int getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Najwyżej tyle procent odczytów może dostać drugie zapytanie
+     */
+    public int getHedgeBudget() {
+        return hedgeBudget;
+    }
+
+    /**
+     * Limit zapytań na sekundę z jednego adresu klienta (0 = bez limitu)
+     */
+    public int getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * Ile zapytań klient może wysłać naraz ponad stałe tempo (domyślnie tyle, ile na sekundę)
+     */
+    public int getRateBurst() {
+        return rateBurst > 0 ? rateBurst : rateLimit;
+    }
+
+    /**
+     * Górna granica adaptacyjnego limitu zapytań w toku (0 = bez limitu)
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
 
     public static ProxyConfig parseArguments(String[] args) throws IllegalArgumentException {
         if (args.length < 4) {
@@ -35,6 +159,22 @@ public class ProxyConfig {
 
         int proxyPort = -1;
         List<ServerInfo> servers = new ArrayList<>();
+        FrontendMode frontendMode = null;
+        int eventLoops = -1;
+        ExecutorMode executorMode = null;
+        int maxThreads = -1;
+        int queueSize = -1;
+        long refreshInterval = -1;
+        int cacheEntries = -1;
+        long cacheTtl = -1;
+        long cacheBytes = -1;
+        int udpShards = -1;
+        int virtualNodes = -1;
+        int hedgePercentile = -1;
+        int hedgeBudget = -1;
+        int rateLimit = -1;
+        int rateBurst = -1;
+        int maxConcurrency = -1;
 
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals("-port")) {
@@ -64,6 +204,108 @@ public class ProxyConfig {
                 } catch (NumberFormatException e) {
                     throw new IllegalArgumentException("niepoprawny port serwera: " + args[i]);
                 }
+
+            } else if (args[i].equals("-frontend")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("brakuje trybu po -frontend (blocking|nio)");
+                }
+                frontendMode = FrontendMode.parse(args[++i]);
+
+            } else if (args[i].equals("-eventLoops")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("brakuje liczby po -eventLoops");
+                }
+                eventLoops = parsePositive(args[++i], "-eventLoops");
+
+            } else if (args[i].equals("-executor")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("brakuje trybu po -executor (cached|bounded|virtual)");
+                }
+                executorMode = ExecutorMode.parse(args[++i]);
+
+            } else if (args[i].equals("-maxThreads")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("brakuje liczby po -maxThreads");
+                }
+                maxThreads = parsePositive(args[++i], "-maxThreads");
+
+            } else if (args[i].equals("-queue")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("brakuje liczby po -queue");
+                }
+                queueSize = parsePositive(args[++i], "-queue");
+
+            } else if (args[i].equals("-refresh")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("brakuje liczby ms po -refresh");
+                }
+                refreshInterval = parseNonNegative(args[++i], "-refresh");
+
+            } else if (args[i].equals("-cache")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("brakuje liczby wpisów po -cache");
+                }
+                cacheEntries = parseNonNegative(args[++i], "-cache");
+
+            } else if (args[i].equals("-cacheTtl")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("brakuje liczby ms po -cacheTtl");
+                }
+                cacheTtl = parsePositive(args[++i], "-cacheTtl");
+
+            } else if (args[i].equals("-cacheMb")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("brakuje liczby MB po -cacheMb");
+                }
+                cacheBytes = parsePositive(args[++i], "-cacheMb") * 1024L * 1024L;
+
+            } else if (args[i].equals("-udpShards")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("brakuje liczby po -udpShards");
+                }
+                udpShards = parsePositive(args[++i], "-udpShards");
+
+            } else if (args[i].equals("-vnodes")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("brakuje liczby po -vnodes");
+                }
+                virtualNodes = parsePositive(args[++i], "-vnodes");
+
+            } else if (args[i].equals("-hedgePercentile")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("brakuje percentyla po -hedgePercentile");
+                }
+                hedgePercentile = parseNonNegative(args[++i], "-hedgePercentile");
+                if (hedgePercentile > 99) {
+                    throw new IllegalArgumentException("-hedgePercentile musi być z zakresu 0-99");
+                }
+
+            } else if (args[i].equals("-hedgeBudget")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("brakuje procentu po -hedgeBudget");
+                }
+                hedgeBudget = parsePositive(args[++i], "-hedgeBudget");
+                if (hedgeBudget > 100) {
+                    throw new IllegalArgumentException("-hedgeBudget musi być z zakresu 1-100");
+                }
+
+            } else if (args[i].equals("-rateLimit")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("brakuje liczby zapytań na sekundę po -rateLimit");
+                }
+                rateLimit = parseNonNegative(args[++i], "-rateLimit");
+
+            } else if (args[i].equals("-rateBurst")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("brakuje liczby po -rateBurst");
+                }
+                rateBurst = parsePositive(args[++i], "-rateBurst");
+
+            } else if (args[i].equals("-maxConcurrency")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("brakuje liczby po -maxConcurrency");
+                }
+                maxConcurrency = parseNonNegative(args[++i], "-maxConcurrency");
             }
         }
 
@@ -75,11 +317,85 @@ public class ProxyConfig {
             throw new IllegalArgumentException("Wymagamy conajmniej jednego parametru");
         }
 
-        return new ProxyConfig(proxyPort, servers);
+        ProxyConfig config = new ProxyConfig(proxyPort, servers);
+        if (frontendMode != null) {
+            config.frontendMode = frontendMode;
+        }
+        if (eventLoops != -1) {
+            config.eventLoops = eventLoops;
+        }
+        if (executorMode != null) {
+            config.executorMode = executorMode;
+        }
+        if (maxThreads != -1) {
+            config.maxThreads = maxThreads;
+        }
+        if (queueSize != -1) {
+            config.queueSize = queueSize;
+        }
+        if (refreshInterval != -1) {
+            config.refreshInterval = refreshInterval;
+        }
+        if (cacheEntries != -1) {
+            config.cacheEntries = cacheEntries;
+        }
+        if (cacheTtl != -1) {
+            config.cacheTtl = cacheTtl;
+        }
+        if (cacheBytes != -1) {
+            config.cacheBytes = cacheBytes;
+        }
+        if (udpShards != -1) {
+            config.udpShards = udpShards;
+        }
+        if (virtualNodes != -1) {
+            config.virtualNodes = virtualNodes;
+        }
+        if (hedgePercentile != -1) {
+            config.hedgePercentile = hedgePercentile;
+        }
+        if (hedgeBudget != -1) {
+            config.hedgeBudget = hedgeBudget;
+        }
+        if (rateLimit != -1) {
+            config.rateLimit = rateLimit;
+        }
+        if (rateBurst != -1) {
+            config.rateBurst = rateBurst;
+        }
+        if (maxConcurrency != -1) {
+            config.maxConcurrency = maxConcurrency;
+        }
+        return config;
+    }
+
+    private static int parseNonNegative(String value, String option) {
+        try {
+            int result = Integer.parseInt(value);
+            if (result < 0) {
+                throw new IllegalArgumentException(option + " nie może być ujemne");
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("zła liczba dla " + option + ": " + value);
+        }
+    }
+
+    private static int parsePositive(String value, String option) {
+        try {
+            int result = Integer.parseInt(value);
+            if (result < 1) {
+                throw new IllegalArgumentException(option + " musi byc większe od 0");
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("zła liczba dla " + option + ": " + value);
+        }
     }
 
     @Override
     public String toString() {
-        return String.format("ProxyConfig{port=%d, servers=%d}", proxyPort, servers.size());
+        return String.format("ProxyConfig{port=%d, servers=%d, frontend=%s, executor=%s}",
+                proxyPort, servers.size(), frontendMode, executorMode);
     }
 }
\ No newline at end of file
@@ -0,0 +1,78 @@
+package discovery;
+
+import model.ServerInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Pierścień spójnego haszowania - wybiera serwer dla klucza, którego nie zna
+ * żaden backend. Każdy serwer ma wiele wirtualnych węzłów, więc klucze rozkładają
+ * się równo, a dodanie lub usunięcie serwera przenosi tylko ~1/n kluczy.
+ * Niezmienny; wyszukiwanie binarne po posortowanej tablicy punktów, O(log n).
+ */
+public final class HashRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final long[] points;
+    private final ServerInfo[] owners;
+
+    public HashRing(List<ServerInfo> servers, int virtualNodes) {
+        List<long[]> entries = new ArrayList<>(servers.size() * virtualNodes);
+        for (int s = 0; s < servers.size(); s++) {
+            ServerInfo server = servers.get(s);
+            for (int v = 0; v < virtualNodes; v++) {
+                entries.add(new long[]{hash(server.getAddress() + ":" + server.getPort() + "#" + v), s});
+            }
+        }
+        // przy kolizji punktów wygrywa serwer o niższym adresie - tak samo w każdym proxy
+        Collections.sort(entries, Comparator.<long[]>comparingLong(e -> e[0])
+                .thenComparing(e -> servers.get((int) e[1]).getAddress())
+                .thenComparingInt(e -> servers.get((int) e[1]).getPort()));
+
+        this.points = new long[entries.size()];
+        this.owners = new ServerInfo[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            points[i] = entries.get(i)[0];
+            owners[i] = servers.get((int) entries.get(i)[1]);
+        }
+    }
+
+    /**
+     * Pierwszy węzeł zgodnie z ruchem wskazówek zegara od hasza klucza, null dla pustego pierścienia.
+     */
+    public ServerInfo locate(String key) {
+        if (points.length == 0) {
+            return null;
+        }
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    public int size() {
+        return points.length;
+    }
+
+    /**
+     * 64-bitowy FNV-1a po znakach i mieszanie końcowe z MurmurHash3,
+     * żeby podobne nazwy ("k1", "k2") nie lądowały obok siebie na pierścieniu.
+     */
+    static long hash(String key) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
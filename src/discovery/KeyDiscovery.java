@@ -1,5 +1,6 @@
 package discovery;
 
+import metrics.Metrics;
 import model.Protocol;
 import model.ServerInfo;
 
@@ -11,127 +12,323 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
 
 /**
  * Klasa odpowiedzialna za odkrywanie kluczy z serwerów TCP i UDP
  */
 public class KeyDiscovery {
     private static final int CONNECTION_TIMEOUT = 1000; // Krótki timeout dla discovery
+    private static final int PROBE_TIMEOUT = 500;
+    private static final int DISCOVERY_DEADLINE = 3000;
+    private static final int MAX_PARALLEL_PROBES = 64;
     private static final int MAX_UDP_PACKET_SIZE = 65535;
+    private static final double JITTER = 0.2;
 
-    private final Map<String, ServerInfo> keyToServer;
-    private final Set<String> allKeys;
+    private final Object refreshLock;
+    private final int virtualNodes;
+    private volatile RoutingTable routing;
+    private volatile HashRing ring;
+    // klucze utworzone przez SET, których backend jeszcze nie zgłosił w GET NAMES
+    private final Map<String, List<ServerInfo>> created;
+    private volatile boolean namesStale;
+    private volatile Predicate<ServerInfo> serverFilter = server -> true;
+    private volatile ToIntFunction<ServerInfo> timeouts = server -> -1;
+    private ScheduledExecutorService refresher;
 
     public KeyDiscovery() {
-        this.keyToServer = new ConcurrentHashMap<>();
-        this.allKeys = ConcurrentHashMap.newKeySet();
+        this(HashRing.DEFAULT_VIRTUAL_NODES);
+    }
+
+    public KeyDiscovery(int virtualNodes) {
+        this.refreshLock = new Object();
+        this.virtualNodes = virtualNodes;
+        this.routing = RoutingTable.EMPTY;
+        this.ring = new HashRing(new ArrayList<>(), virtualNodes);
+        this.created = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Serwery odrzucone przez filtr (np. z otwartym bezpiecznikiem) nie są
+     * odpytywane przy odświeżaniu - zachowują dotychczasowe klucze.
+     */
+    public void setServerFilter(Predicate<ServerInfo> serverFilter) {
+        this.serverFilter = serverFilter;
+    }
+
+    /**
+     * Timeouty odpytywania wyliczane z czasów odpowiedzi serwera (w ms, -1 = brak
+     * pomiarów). Bez pomiarów obowiązują PROBE_TIMEOUT i CONNECTION_TIMEOUT.
+     */
+    public void setTimeouts(ToIntFunction<ServerInfo> timeouts) {
+        this.timeouts = timeouts;
+    }
+
+    private int timeoutFor(ServerInfo server, int fallback) {
+        int timeout = timeouts.applyAsInt(server);
+        return timeout > 0 ? timeout : fallback;
     }
 
     public void discoverKeys(List<ServerInfo> servers) {
         System.out.println("\n=== Odkrywanie kluczy ===");
-        System.out.println("Sprawdza " + servers.size() + " serwerów...");
+        System.out.println("Sprawdza " + servers.size() + " serwerów równolegle (limit " + DISCOVERY_DEADLINE + " ms)...");
         System.out.println();
 
-        for (ServerInfo server : servers) {
-            try {
-                System.out.println("Sprawdza server: " + server);
-                detectProtocol(server);
-                discoverKeysFromServer(server);
-                System.out.println();
-            } catch (Exception e) {
-                System.err.println("Error z " + server + ": " + e.getMessage());
+        long start = System.currentTimeMillis();
+        ring = new HashRing(servers, virtualNodes);
+        List<Probe> probes = probeAll(servers);
+        Map<String, List<ServerInfo>> keyToServers = new HashMap<>();
+
+        for (Probe probe : probes) {
+            System.out.println("Sprawdza server: " + probe.server);
+            System.out.print("  Sprawdzanie protokołów... ");
+            if (probe.timedOut || probe.response == null) {
+                System.out.println(probe.skipped ? "POMINIĘTY (bezpiecznik otwarty)" : probe.timedOut ? "TIMEOUT" : "FAILED");
+                probe.server.setProtocol(Protocol.TCP);
+                Metrics.increment("discovery.failed");
+            } else {
+                probe.server.setProtocol(probe.protocol);
+                System.out.println(probe.protocol + " Odkryty");
+                System.out.println("  Odpowiedz: " + probe.response);
+                for (String key : parseKeysResponse(probe.response)) {
+                    addReplica(keyToServers, key, probe.server);
+                    System.out.println("  -> Klucz '" + key + "' na sewerze: " + probe.server);
+                }
             }
+            System.out.println();
         }
 
-        System.out.println("=== Zakończone ===");
-        System.out.println("Ilosc kluczy które znalazłem: " + allKeys.size());
-        System.out.println("Klucze: " + allKeys);
+        synchronized (refreshLock) {
+            routing = new RoutingTable(keyToServers, routing.getVersion() + 1);
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        Metrics.set("discovery.ms", elapsed);
+        Metrics.set("discovery.keys.replicated", routing.getReplicatedKeys());
+
+        System.out.println("=== Zakończone w " + elapsed + " ms ===");
+        System.out.println("Ilosc kluczy które znalazłem: " + routing.size()
+                + " (z kilkoma replikami: " + routing.getReplicatedKeys() + ")");
+        System.out.println("Klucze: " + routing.getKeys());
         System.out.println();
     }
 
-    private void detectProtocol(ServerInfo server) {
-        System.out.print("  Sprawdzanie protokołów... ");
-
-        if (tryTCP(server)) {
-            server.setProtocol(Protocol.TCP);
-            System.out.println("TCP Odkryty");
-        } else if (tryUDP(server)) {
-            server.setProtocol(Protocol.UDP);
-            System.out.println("UDP Odkryty");
-        } else {
-            System.out.println("FAILED");
-            server.setProtocol(Protocol.TCP);
+    /**
+     * Uruchamia okresowe odkrywanie kluczy w tle. Odstęp jest losowo rozrzucony
+     * o +-JITTER, żeby proxy w drzewie nie odpytywały serwerów w tym samym momencie.
+     */
+    public void startRefresh(List<ServerInfo> servers, long intervalMs) {
+        if (intervalMs <= 0) {
+            return;
         }
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Key-Refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduleRefresh(servers, intervalMs);
     }
 
-    private boolean tryTCP(ServerInfo server) {
-        try (Socket socket = new Socket()) {
-            socket.connect(new InetSocketAddress(server.getAddress(), server.getPort()), 500);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    public void stopRefresh() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
 
-            out.println("GET NAMES");
-            socket.setSoTimeout(500);
-            String response = in.readLine();
-            return response != null && response.startsWith("OK");
-        } catch (Exception e) {
-            return false;
+    private void scheduleRefresh(List<ServerInfo> servers, long intervalMs) {
+        double jitter = 1 + (ThreadLocalRandom.current().nextDouble() * 2 - 1) * JITTER;
+        long delay = Math.max(1, (long) (intervalMs * jitter));
+        try {
+            refresher.schedule(() -> {
+                try {
+                    refresh(servers);
+                } catch (Exception e) {
+                    System.err.println("Error odświeżania kluczy: " + e.getMessage());
+                } finally {
+                    if (!refresher.isShutdown()) {
+                        scheduleRefresh(servers, intervalMs);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // zatrzymane
         }
     }
 
-    private boolean tryUDP(ServerInfo server) {
-        try (DatagramSocket socket = new DatagramSocket()) {
-            socket.setSoTimeout(500);
+    /**
+     * Jeden cykl ponownego odkrywania: buduje nową tabelę, liczy różnicę względem
+     * obecnej i podmienia ją atomowo. Serwer który nie odpowiedział zachowuje
+     * swoje dotychczasowe klucze.
+     */
+    void refresh(List<ServerInfo> servers) {
+        List<Probe> probes = probeAll(servers);
 
-            byte[] sendData = "GET NAMES\n".getBytes();
-            InetAddress address = InetAddress.getByName(server.getAddress());
+        synchronized (refreshLock) {
+            RoutingTable current = routing;
+            Map<String, List<ServerInfo>> keyToServers = new HashMap<>();
 
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, address, server.getPort());
-            socket.send(sendPacket);
+            for (Probe probe : probes) {
+                if (probe.timedOut || probe.response == null) {
+                    for (Map.Entry<String, List<ServerInfo>> entry : current.asMap().entrySet()) {
+                        if (entry.getValue().contains(probe.server)) {
+                            addReplica(keyToServers, entry.getKey(), probe.server);
+                        }
+                    }
+                } else {
+                    probe.server.setProtocol(probe.protocol);
+                    for (String key : parseKeysResponse(probe.response)) {
+                        addReplica(keyToServers, key, probe.server);
+                    }
+                }
+            }
 
-            byte[] receiveData = new byte[MAX_UDP_PACKET_SIZE];
-            DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-            socket.receive(receivePacket);
+            // utworzone klucze zostają w nakładce, dopóki backend ich nie zgłosi
+            for (Map.Entry<String, List<ServerInfo>> entry : created.entrySet()) {
+                if (keyToServers.containsKey(entry.getKey())) {
+                    created.remove(entry.getKey(), entry.getValue());
+                } else {
+                    keyToServers.put(entry.getKey(), entry.getValue());
+                }
+            }
 
-            String response = new String(receivePacket.getData(), 0, receivePacket.getLength()).trim();
-            return response.startsWith("OK");
-        } catch (Exception e) {
-            return false;
+            int added = 0;
+            int removed = 0;
+            for (String key : keyToServers.keySet()) {
+                if (current.getServers(key) == null) {
+                    added++;
+                }
+            }
+            for (String key : current.getKeys()) {
+                if (!keyToServers.containsKey(key)) {
+                    removed++;
+                }
+            }
+
+            Metrics.increment("discovery.cycles");
+            Metrics.set("discovery.cycle.added", added);
+            Metrics.set("discovery.cycle.removed", removed);
+            Metrics.add("discovery.keys.added", added);
+            Metrics.add("discovery.keys.removed", removed);
+
+            if (added > 0 || removed > 0 || !keyToServers.equals(current.asMap())) {
+                routing = new RoutingTable(keyToServers, current.getVersion() + 1);
+                Metrics.set("discovery.keys.replicated", routing.getReplicatedKeys());
+                System.out.println("[Discovery] Nowa tabela routingu v" + routing.getVersion()
+                        + ": +" + added + " -" + removed + " kluczy, razem " + routing.size());
+            }
         }
     }
 
-    private void discoverKeysFromServer(ServerInfo server) throws Exception {
-        if (server.getProtocol() == Protocol.TCP) {
-            discoverKeysTCP(server);
-        } else {
-            discoverKeysUDP(server);
+    /**
+     * Odpytuje wszystkie serwery naraz. Serwery które nie odpowiedzą przed
+     * DISCOVERY_DEADLINE zostają pominięte.
+     */
+    private List<Probe> probeAll(List<ServerInfo> servers) {
+        List<Probe> probes = new ArrayList<>();
+        List<Probe> running = new ArrayList<>();
+        for (ServerInfo server : servers) {
+            Probe probe = new Probe(server);
+            probes.add(probe);
+            if (serverFilter.test(server)) {
+                running.add(probe);
+            } else {
+                // otwarty bezpiecznik - nie czekamy na timeout, klucze serwera zostają
+                probe.skipped = true;
+                Metrics.increment("discovery.skipped");
+            }
+        }
+        if (running.isEmpty()) {
+            return probes;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(running.size(), MAX_PARALLEL_PROBES), runnable -> {
+            Thread thread = new Thread(runnable, "Discovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            executor.invokeAll(running, DISCOVERY_DEADLINE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (Probe probe : running) {
+            if (!probe.done) {
+                probe.timedOut = true;
+            }
+        }
+        return probes;
+    }
+
+    /**
+     * Jedno GET NAMES służy jednocześnie do wykrycia protokołu i pobrania kluczy.
+     */
+    private class Probe implements Callable<Void> {
+        private final ServerInfo server;
+        private volatile Protocol protocol;
+        private volatile String response;
+        private volatile boolean done;
+        private boolean timedOut;
+        private boolean skipped;
+
+        Probe(ServerInfo server) {
+            this.server = server;
+        }
+
+        @Override
+        public Void call() {
+            String tcp = tryTCP(server);
+            if (tcp != null) {
+                protocol = Protocol.TCP;
+                response = tcp;
+            } else {
+                String udp = tryUDP(server);
+                if (udp != null) {
+                    protocol = Protocol.UDP;
+                    response = udp;
+                }
+            }
+            done = true;
+            return null;
         }
     }
 
-    private void discoverKeysTCP(ServerInfo server) throws Exception {
+    private String tryTCP(ServerInfo server) {
         try (Socket socket = new Socket()) {
-            socket.connect(new InetSocketAddress(server.getAddress(), server.getPort()), CONNECTION_TIMEOUT);
+            socket.connect(new InetSocketAddress(server.getAddress(), server.getPort()), timeoutFor(server, PROBE_TIMEOUT));
             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 
             out.println("GET NAMES");
-            socket.setSoTimeout(CONNECTION_TIMEOUT);
+            socket.setSoTimeout(timeoutFor(server, CONNECTION_TIMEOUT));
             String response = in.readLine();
-            if (response != null) {
-                System.out.println("  Response: " + response);
-                parseKeysResponse(response, server);
-            }
+            return response != null && response.startsWith("OK") ? response : null;
+        } catch (Exception e) {
+            return null;
         }
     }
 
-    private void discoverKeysUDP(ServerInfo server) throws Exception {
+    private String tryUDP(ServerInfo server) {
         try (DatagramSocket socket = new DatagramSocket()) {
-            socket.setSoTimeout(CONNECTION_TIMEOUT);
+            socket.setSoTimeout(timeoutFor(server, PROBE_TIMEOUT));
 
             byte[] sendData = "GET NAMES\n".getBytes();
             InetAddress address = InetAddress.getByName(server.getAddress());
@@ -144,31 +341,88 @@ public class KeyDiscovery {
             socket.receive(receivePacket);
 
             String response = new String(receivePacket.getData(), 0, receivePacket.getLength()).trim();
-            System.out.println("  Odpowiedz: " + response);
-            parseKeysResponse(response, server);
+            return response.startsWith("OK") ? response : null;
+        } catch (Exception e) {
+            return null;
         }
     }
 
-    private void parseKeysResponse(String response, ServerInfo server) {
-        if (response == null || !response.startsWith("OK")) return;
+    /**
+     * Ten sam klucz na kilku serwerach to repliki - zapamiętujemy wszystkie,
+     * w kolejności serwerów z konfiguracji.
+     */
+    private static void addReplica(Map<String, List<ServerInfo>> keyToServers, String key, ServerInfo server) {
+        List<ServerInfo> servers = keyToServers.computeIfAbsent(key, k -> new ArrayList<>(1));
+        if (!servers.contains(server)) {
+            servers.add(server);
+        }
+    }
+
+    private List<String> parseKeysResponse(String response) {
+        List<String> keys = new ArrayList<>();
+        if (response == null || !response.startsWith("OK")) return keys;
         String[] parts = response.split("\\s+");
-        if (parts.length < 2) return;
+        if (parts.length < 2) return keys;
 
         try {
             int count = Integer.parseInt(parts[1]);
             for (int i = 2; i < 2 + count && i < parts.length; i++) {
-                String key = parts[i];
-                keyToServer.put(key, server);
-                allKeys.add(key);
-                System.out.println("  -> Klucz '" + key + "' na sewerze: " + server);
+                keys.add(parts[i]);
             }
         } catch (NumberFormatException e) {
             System.err.println("Zła ilosc kluczy: " + response);
         }
+        return keys;
+    }
+
+    /**
+     * Serwer dla nowego klucza według pierścienia - deterministyczny, więc
+     * każde proxy z tą samą listą serwerów wybierze ten sam.
+     */
+    public ServerInfo placeNewKey(String key) {
+        return ring.locate(key);
+    }
+
+    /**
+     * Backend przyjął SET nowego klucza - od teraz GET VALUE trafia do niego.
+     * Tabela routingu nie jest przebudowywana przy każdym nowym kluczu, tylko
+     * przy następnym GET NAMES albo odświeżeniu.
+     */
+    public void addCreatedKey(String key, ServerInfo server) {
+        if (routing.getServers(key) == null && created.put(key, Collections.singletonList(server)) == null) {
+            namesStale = true;
+            Metrics.increment("ring.created");
+        }
+    }
+
+    /**
+     * Tabela routingu razem z kluczami utworzonymi od ostatniej przebudowy - dla GET NAMES.
+     */
+    public RoutingTable getCompleteRoutingTable() {
+        if (!namesStale) {
+            return routing;
+        }
+        synchronized (refreshLock) {
+            if (namesStale) {
+                namesStale = false;
+                Map<String, List<ServerInfo>> keyToServers = new HashMap<>(created);
+                keyToServers.putAll(routing.asMap());
+                routing = new RoutingTable(keyToServers, routing.getVersion() + 1);
+            }
+            return routing;
+        }
+    }
+
+    /**
+     * Serwery z repliką klucza, null gdy klucza nie zna żaden backend.
+     */
+    public List<ServerInfo> getReplicasForKey(String key) {
+        List<ServerInfo> servers = routing.getServers(key);
+        return servers != null || created.isEmpty() ? servers : created.get(key);
     }
 
-    public ServerInfo getServerForKey(String key) { return keyToServer.get(key); }
-    public Set<String> getAllKeys() { return new HashSet<>(allKeys); }
-    public boolean hasKey(String key) { return allKeys.contains(key); }
-    public int getKeyCount() { return allKeys.size(); }
+    public Set<String> getAllKeys() { return new HashSet<>(getCompleteRoutingTable().getKeys()); }
+    public boolean hasKey(String key) { return getReplicasForKey(key) != null; }
+    public int getKeyCount() { return getCompleteRoutingTable().size(); }
+    public RoutingTable getRoutingTable() { return routing; }
 }
\ No newline at end of file
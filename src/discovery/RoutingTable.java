@@ -0,0 +1,163 @@
+package discovery;
+
+import model.ServerInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Niezmienna migawka tabeli routingu (klucz -> serwery z repliką klucza).
+ * Nowa wersja jest budowana obok i podmieniana atomowo, więc odczyty nie
+ * potrzebują blokad.
+ */
+public final class RoutingTable {
+    static final RoutingTable EMPTY = new RoutingTable(new HashMap<>(), 0);
+
+    private final Map<String, List<ServerInfo>> keyToServers;
+    private final Set<String> keys;
+    private final int replicatedKeys;
+    private final long version;
+    private final String namesResponse;
+    private final byte[] namesResponseBytes;
+
+    // indeks kluczy po bajtach (adresowanie otwarte) - parser komend znajduje
+    // kanoniczny String klucza bez tworzenia nowego obiektu
+    private final String[] indexKeys;
+    private final byte[][] indexBytes;
+    private final int[] indexHashes;
+
+    RoutingTable(Map<String, List<ServerInfo>> keyToServers, long version) {
+        Map<String, List<ServerInfo>> copy = new HashMap<>();
+        int replicated = 0;
+        for (Map.Entry<String, List<ServerInfo>> entry : keyToServers.entrySet()) {
+            List<ServerInfo> servers = entry.getValue();
+            if (servers.size() > 1) {
+                replicated++;
+            }
+            copy.put(entry.getKey(), servers.size() == 1
+                    ? Collections.singletonList(servers.get(0))
+                    : Collections.unmodifiableList(new ArrayList<>(servers)));
+        }
+        this.keyToServers = Collections.unmodifiableMap(copy);
+        this.keys = Collections.unmodifiableSet(new LinkedHashSet<>(keyToServers.keySet()));
+        this.replicatedKeys = replicated;
+        this.version = version;
+        this.namesResponse = encodeNames(keys);
+        this.namesResponseBytes = namesResponse.getBytes();
+
+        int capacity = Integer.highestOneBit(Math.max(4, keys.size() * 2) - 1) << 1;
+        this.indexKeys = new String[capacity];
+        this.indexBytes = new byte[capacity][];
+        this.indexHashes = new int[capacity];
+        for (String key : keys) {
+            byte[] bytes = key.getBytes();
+            int hash = hash(bytes, 0, bytes.length);
+            int slot = hash & (capacity - 1);
+            while (indexKeys[slot] != null) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            indexKeys[slot] = key;
+            indexBytes[slot] = bytes;
+            indexHashes[slot] = hash;
+        }
+    }
+
+    /**
+     * Szuka klucza zapisanego w buforze. Zwraca kanoniczny String z tabeli
+     * albo null gdy takiego klucza nie znamy.
+     */
+    public String lookupKey(byte[] buf, int offset, int length) {
+        int hash = hash(buf, offset, length);
+        int mask = indexKeys.length - 1;
+        for (int slot = hash & mask; indexKeys[slot] != null; slot = (slot + 1) & mask) {
+            if (indexHashes[slot] == hash && sameBytes(indexBytes[slot], buf, offset, length)) {
+                return indexKeys[slot];
+            }
+        }
+        return null;
+    }
+
+    private static int hash(byte[] buf, int offset, int length) {
+        int h = 0x811C9DC5; // FNV-1a
+        for (int i = offset; i < offset + length; i++) {
+            h = (h ^ buf[i]) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean sameBytes(byte[] key, byte[] buf, int offset, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != buf[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Odpowiedź na GET NAMES budowana raz dla każdej wersji tabeli: "OK n k1 k2 ..."
+     */
+    private static String encodeNames(Set<String> keys) {
+        if (keys.isEmpty()) {
+            return "OK 0";
+        }
+
+        StringBuilder sb = new StringBuilder("OK ");
+        sb.append(keys.size());
+
+        for (String key : keys) {
+            sb.append(" ").append(key);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Wszystkie serwery z repliką klucza (niemodyfikowalna lista), null dla nieznanego klucza.
+     */
+    public List<ServerInfo> getServers(String key) {
+        return keyToServers.get(key);
+    }
+
+    /**
+     * Liczba kluczy zgłoszonych przez więcej niż jeden serwer.
+     */
+    public int getReplicatedKeys() {
+        return replicatedKeys;
+    }
+
+    public Set<String> getKeys() {
+        return keys;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String getNamesResponse() {
+        return namesResponse;
+    }
+
+    /**
+     * Zakodowana odpowiedź GET NAMES - współdzielona, nie wolno jej modyfikować.
+     */
+    public byte[] getNamesResponseBytes() {
+        return namesResponseBytes;
+    }
+
+    Map<String, List<ServerInfo>> asMap() {
+        return keyToServers;
+    }
+}
@@ -0,0 +1,50 @@
+package metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Proste liczniki i wskaźniki proxy. Dostępne przez komendę GET STATS
+ * i wypisywane przy zamknięciu proxy.
+ */
+public final class Metrics {
+    private static final Map<String, AtomicLong> values = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static void add(String name, long delta) {
+        value(name).addAndGet(delta);
+    }
+
+    public static void set(String name, long value) {
+        value(name).set(value);
+    }
+
+    public static long get(String name) {
+        AtomicLong value = values.get(name);
+        return value == null ? 0 : value.get();
+    }
+
+    private static AtomicLong value(String name) {
+        AtomicLong value = values.get(name);
+        return value != null ? value : values.computeIfAbsent(name, n -> new AtomicLong());
+    }
+
+    /**
+     * Format jak odpowiedź GET NAMES: "OK n nazwa=wartość ..."
+     */
+    public static String snapshot() {
+        StringBuilder sb = new StringBuilder("OK ");
+        sb.append(values.size());
+        for (Map.Entry<String, AtomicLong> entry : values.entrySet()) {
+            sb.append(" ").append(entry.getKey()).append("=").append(entry.getValue().get());
+        }
+        return sb.toString();
+    }
+}
@@ -6,7 +6,7 @@ import java.util.Objects;
 public class ServerInfo {
     private final String address;
     private final int port;
-    private Protocol protocol;
+    private volatile Protocol protocol;
 
     public ServerInfo(String address, int port) {
         this.address = address;
@@ -0,0 +1,80 @@
+package server;
+
+import metrics.Metrics;
+
+import java.net.InetAddress;
+
+/**
+ * Kontrola przyjęcia zapytań przed CommandProcessor: limit zapytań na sekundę
+ * dla każdego adresu klienta i wspólny adaptacyjny limit zapytań w toku.
+ * Odrzucone zapytanie dostaje od razu NA - nie zajmuje workera ani backendu.
+ * Każde przyjęte zapytanie musi skończyć się wywołaniem release().
+ */
+public class AdmissionControl {
+    private final ClientRateLimiter rateLimiter;
+    private final ConcurrencyLimit concurrencyLimit;
+
+    /**
+     * @param ratePerClient zapytań na sekundę z jednego adresu, 0 = bez limitu
+     * @param burst ile zapytań klient może wysłać naraz ponad stałe tempo
+     * @param maxConcurrency górna granica adaptacyjnego limitu zapytań w toku, 0 = bez limitu
+     */
+    public AdmissionControl(int ratePerClient, int burst, int maxConcurrency) {
+        this.rateLimiter = ratePerClient > 0 ? new ClientRateLimiter(ratePerClient, burst) : null;
+        this.concurrencyLimit = maxConcurrency > 0 ? new ConcurrencyLimit(maxConcurrency) : null;
+    }
+
+    /**
+     * Bez limitów - dla listenerów tworzonych bez kontroli przyjęcia.
+     */
+    static AdmissionControl unlimited() {
+        return new AdmissionControl(0, 0, 0);
+    }
+
+    /**
+     * Najpierw wspólny limit, potem żeton klienta - zapytanie odrzucone przez
+     * przeciążenie nie zużywa limitu klienta, który nic nie zawinił.
+     */
+    boolean tryAcquire(InetAddress client) {
+        if (concurrencyLimit != null && !concurrencyLimit.tryAcquire()) {
+            Metrics.increment("admission.rejected.limit");
+            return false;
+        }
+        if (rateLimiter != null && client != null && !rateLimiter.tryAcquire(client)) {
+            if (concurrencyLimit != null) {
+                concurrencyLimit.cancel();
+            }
+            Metrics.increment("admission.rejected.rate");
+            Metrics.set("admission.clients", rateLimiter.trackedClients());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param startNanos System.nanoTime() z chwili przyjęcia zapytania
+     */
+    void release(long startNanos) {
+        if (concurrencyLimit != null) {
+            concurrencyLimit.release(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Przyjęte zapytanie nie zostało jednak wykonane - oddaje miejsce bez pomiaru czasu.
+     */
+    void cancel() {
+        if (concurrencyLimit != null) {
+            concurrencyLimit.cancel();
+        }
+    }
+
+    /**
+     * QUIT zamyka proxy, a GET STATS jest potrzebne właśnie przy przeciążeniu -
+     * oba nie idą do backendów i nie mogą utknąć na limicie.
+     */
+    static boolean isExempt(String command) {
+        String trimmed = command.trim();
+        return trimmed.equals("QUIT") || trimmed.equals("GET STATS");
+    }
+}
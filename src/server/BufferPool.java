@@ -0,0 +1,47 @@
+package server;
+
+import metrics.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pula buforów na datagramy. Bufor wraca do puli po wysłaniu odpowiedzi,
+ * więc przy stałym ruchu nie tworzymy nowych. Nadmiarowe bufory (ponad
+ * maxPooled) są po prostu porzucane.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> free;
+    private final AtomicInteger pooled;
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.free = new ConcurrentLinkedQueue<>();
+        this.pooled = new AtomicInteger();
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            Metrics.increment("udp.buffers.allocated");
+            // bufor na stercie - parser komend czyta prosto z jego tablicy
+            return ByteBuffer.allocate(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
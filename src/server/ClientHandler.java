@@ -2,22 +2,47 @@ package server;
 
 import command.CommandProcessor;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 
+/**
+ * Obsługuje sesję klienta TCP: połączenie zostaje otwarte, a klient może wysłać
+ * wiele komend (po jednej w linii). Komendy są przetwarzane równolegle, ale
+ * odpowiedzi wracają w kolejności komend.
+ */
 public class ClientHandler implements Runnable {
+    static final int SESSION_IDLE_TIMEOUT = 60_000;
+    static final int MAX_PIPELINE = 64;
+
     private final Socket clientSocket;
     private final CommandProcessor commandProcessor;
+    private final Executor executor;
+    private final Semaphore inFlight;
+    private final AdmissionControl admission;
+
+    public ClientHandler(Socket clientSocket, CommandProcessor commandProcessor, Executor executor) {
+        this(clientSocket, commandProcessor, executor, AdmissionControl.unlimited());
+    }
 
-    public ClientHandler(Socket clientSocket, CommandProcessor commandProcessor) {
+    public ClientHandler(Socket clientSocket, CommandProcessor commandProcessor, Executor executor,
+                         AdmissionControl admission) {
         this.clientSocket = clientSocket;
         this.commandProcessor = commandProcessor;
+        this.executor = executor;
+        this.inFlight = new Semaphore(MAX_PIPELINE);
+        this.admission = admission;
     }
 
     @Override
     public void run() {
+        WorkerExecutors.markFrontEndThread();
         try {
             handleClient();
         } catch (Exception e) {
@@ -30,25 +55,47 @@ public class ClientHandler implements Runnable {
 
 
     private void handleClient() throws Exception {
+        clientSocket.setSoTimeout(SESSION_IDLE_TIMEOUT);
         BufferedReader in = new BufferedReader(
                 new InputStreamReader(clientSocket.getInputStream())
         );
-        PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+        OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream());
 
-        String command = in.readLine();
+        CommandPipeline pipeline = new CommandPipeline(commandProcessor, executor, response -> send(out, response),
+                admission, clientSocket.getInetAddress());
 
-        if (command == null) {
-            return;
-        }
+        while (true) {
+            String command;
+            try {
+                inFlight.acquire();
+                command = in.readLine();
+            } catch (SocketTimeoutException e) {
+                break;
+            }
 
-        System.out.println("      Komenda: " + command);
+            if (command == null) {
+                break;
+            }
 
+            System.out.println("      Komenda: " + command);
+            pipeline.submit(command);
+        }
 
-        String response = commandProcessor.processCommand(command);
+        pipeline.drained().join();
+    }
 
-        if (response != null && !response.isEmpty()) {
-            System.out.println("      Odpowiedz: " + response);
-            out.println(response);
+    private void send(OutputStream out, String response) {
+        try {
+            if (response != null && !response.isEmpty()) {
+                System.out.println("      Odpowiedz: " + response);
+                out.write(commandProcessor.encodeResponse(response));
+                out.write('\n');
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Error wysyłania odpowiedzi: " + e.getMessage());
+        } finally {
+            inFlight.release();
         }
     }
 
@@ -0,0 +1,91 @@
+package server;
+
+import metrics.Metrics;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Kubełek żetonów dla każdego adresu klienta: rate zapytań na sekundę,
+ * chwilowo do burst naraz. Jeden hałaśliwy klient wyczerpuje tylko swój
+ * kubełek, reszta dalej jest obsługiwana. Kubełki nieaktywnych klientów
+ * (pełne, więc nic nie wnoszą) są usuwane, gdy jest ich za dużo - najwyżej
+ * raz na czas napełnienia kubełka. Gdy mimo to mapa jest pełna, nowi klienci
+ * dzielą jeden wspólny kubełek, więc mapa nie rośnie bez końca.
+ */
+final class ClientRateLimiter {
+    private static final int MAX_TRACKED_CLIENTS = 10_000;
+
+    private final double tokensPerNano;
+    private final double burst;
+    private final long refillNanos;
+    private final ConcurrentHashMap<InetAddress, Bucket> buckets = new ConcurrentHashMap<>();
+    private final Bucket overflow;
+    private final AtomicLong nextEviction;
+
+    ClientRateLimiter(int ratePerSecond, int burst) {
+        this.tokensPerNano = ratePerSecond / 1_000_000_000.0;
+        this.burst = Math.max(1, burst);
+        this.refillNanos = (long) Math.ceil(this.burst / tokensPerNano);
+        long now = System.nanoTime();
+        this.overflow = new Bucket(this.burst, now);
+        this.nextEviction = new AtomicLong(now);
+    }
+
+    boolean tryAcquire(InetAddress client) {
+        long now = System.nanoTime();
+        Bucket bucket = buckets.get(client);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_TRACKED_CLIENTS) {
+                long next = nextEviction.get();
+                if (now - next >= 0 && nextEviction.compareAndSet(next, now + refillNanos)) {
+                    evictIdle(now);
+                }
+                if (buckets.size() >= MAX_TRACKED_CLIENTS) {
+                    Metrics.increment("admission.overflow");
+                    return overflow.tryTake(now);
+                }
+            }
+            bucket = buckets.computeIfAbsent(client, c -> new Bucket(burst, now));
+        }
+        return bucket.tryTake(now);
+    }
+
+    int trackedClients() {
+        return buckets.size();
+    }
+
+    private void evictIdle(long now) {
+        Iterator<Map.Entry<InetAddress, Bucket>> it = buckets.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue().lastRefill >= refillNanos) {
+                it.remove();
+            }
+        }
+    }
+
+    private final class Bucket {
+        private double tokens;
+        private volatile long lastRefill;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+
+        synchronized boolean tryTake(long now) {
+            if (now > lastRefill) {
+                tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+                lastRefill = now;
+            }
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package server;
+
+import command.CommandProcessor;
+
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Kolejka komend jednego klienta. Odczyty (GET) są przetwarzane równolegle,
+ * SET i QUIT czekają na wszystko co było przed nimi, a odpowiedzi trafiają
+ * do odbiorcy zawsze w kolejności komend. Czekanie na serwer nie zajmuje
+ * wątku - odpowiedź dokańcza callback. submit() wołamy z jednego wątku.
+ * Komenda odrzucona przez AdmissionControl dostaje NA na swoim miejscu w kolejce.
+ */
+class CommandPipeline {
+    private final CommandProcessor commandProcessor;
+    private final Executor executor;
+    private final Consumer<String> sink;
+    private final AdmissionControl admission;
+    private final InetAddress client;
+
+    // written - zakończone wysyłanie wszystkich dotychczasowych odpowiedzi
+    // barrier  - ostatnia komenda zapisująca, na którą muszą poczekać kolejne
+    private CompletableFuture<Void> written;
+    private CompletableFuture<?> barrier;
+
+    CommandPipeline(CommandProcessor commandProcessor, Executor executor, Consumer<String> sink,
+                    AdmissionControl admission, InetAddress client) {
+        this.commandProcessor = commandProcessor;
+        this.executor = executor;
+        this.sink = sink;
+        this.admission = admission;
+        this.client = client;
+        this.written = CompletableFuture.completedFuture(null);
+        this.barrier = written;
+    }
+
+    void submit(String command) {
+        boolean limited = !AdmissionControl.isExempt(command);
+        if (limited && !admission.tryAcquire(client)) {
+            written = written.thenRunAsync(() -> sink.accept("NA"), executor);
+            return;
+        }
+
+        // czas dla limitu liczymy od startu komendy, nie od submit() - czekanie
+        // na własne wcześniejsze zapisy klienta nie mówi nic o obciążeniu backendów
+        long[] startedAt = limited ? new long[1] : null;
+        CompletableFuture<String> response;
+        if (isReadOnly(command)) {
+            response = barrier.thenComposeAsync(ignored -> process(command, startedAt), executor);
+        } else {
+            response = written.thenComposeAsync(ignored -> process(command, startedAt), executor);
+            barrier = response;
+        }
+        if (limited) {
+            response.whenComplete((result, error) -> {
+                if (startedAt[0] != 0) {
+                    admission.release(startedAt[0]);
+                } else {
+                    admission.cancel();
+                }
+            });
+        }
+
+        // odbiorca może pisać do blokującego gniazda - nie robimy tego w wątku I/O forwardera
+        written = written.thenCombineAsync(response, (ignored, result) -> {
+            sink.accept(result);
+            return null;
+        }, executor);
+    }
+
+    /**
+     * Zakończy się gdy wszystkie odpowiedzi zostaną przekazane do odbiorcy.
+     */
+    CompletableFuture<Void> drained() {
+        return written;
+    }
+
+    private boolean isReadOnly(String command) {
+        String trimmed = command.trim();
+        return trimmed.startsWith("GET") || trimmed.startsWith("MGET");
+    }
+
+    private CompletableFuture<String> process(String command, long[] startedAt) {
+        if (startedAt != null) {
+            startedAt[0] = System.nanoTime();
+        }
+        try {
+            return commandProcessor.processCommandAsync(command)
+                    .exceptionally(e -> {
+                        System.err.println("Error przetwarzania komendy: " + e.getMessage());
+                        return "NA";
+                    });
+        } catch (Exception e) {
+            System.err.println("Error przetwarzania komendy: " + e.getMessage());
+            return CompletableFuture.completedFuture("NA");
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package server;
+
+import metrics.Metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptacyjny limit zapytań przetwarzanych naraz (gradient, jak Gradient2
+ * z Netflix concurrency-limits). Porównuje krótką średnią czasu odpowiedzi
+ * z długą: gdy krótka rośnie, zapytania czekają w kolejkach i limit maleje
+ * proporcjonalnie, gdy wraca do normy - limit rośnie o sqrt(limit).
+ * Przy małym ruchu (w locie mniej niż pół limitu) pomiary nic nie mówią
+ * o pojemności i limit stoi w miejscu.
+ */
+final class ConcurrencyLimit {
+    private static final int MIN_LIMIT = 20;
+    private static final int INITIAL_LIMIT = 200;
+    private static final double SHORT_ALPHA = 0.1;
+    private static final double LONG_ALPHA = 0.002;
+    // krótka średnia może być o tyle wyższa od długiej, zanim limit zacznie spadać
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+    private double estimatedLimit;
+    private double shortRtt;
+    private double longRtt;
+
+    ConcurrencyLimit(int maxLimit) {
+        this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+        this.estimatedLimit = Math.min(INITIAL_LIMIT, this.maxLimit);
+        this.limit = (int) estimatedLimit;
+        Metrics.set("admission.limit", limit);
+    }
+
+    boolean tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    void release(long rttNanos) {
+        int current = inFlight.getAndDecrement();
+        update(rttNanos, current);
+    }
+
+    /**
+     * Oddaje miejsce bez pomiaru - zapytanie nie zostało jednak wykonane.
+     */
+    void cancel() {
+        inFlight.decrementAndGet();
+    }
+
+    private synchronized void update(long rttNanos, int inFlightAtEnd) {
+        double rtt = Math.max(1, rttNanos);
+        shortRtt = shortRtt == 0 ? rtt : shortRtt + SHORT_ALPHA * (rtt - shortRtt);
+        longRtt = longRtt == 0 ? rtt : longRtt + LONG_ALPHA * (rtt - longRtt);
+        if (longRtt > 2 * shortRtt) {
+            // obciążenie spadło - długa średnia szybciej schodzi do nowego poziomu
+            longRtt *= 0.95;
+        }
+        if (inFlightAtEnd < estimatedLimit / 2) {
+            return;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+        double next = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        estimatedLimit = Math.max(MIN_LIMIT, Math.min(maxLimit,
+                estimatedLimit * (1 - SMOOTHING) + next * SMOOTHING));
+        int rounded = (int) estimatedLimit;
+        if (rounded != limit) {
+            limit = rounded;
+            Metrics.set("admission.limit", rounded);
+        }
+    }
+}
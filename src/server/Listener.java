@@ -0,0 +1,8 @@
+package server;
+
+/**
+ * Wspólny interfejs dla nasłuchujących frontendów proxy (TCP, NIO, UDP)
+ */
+public interface Listener extends Runnable {
+    void stop();
+}
@@ -0,0 +1,410 @@
+package server;
+
+import command.CommandProcessor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Nieblokujący frontend TCP: jeden wątek akceptuje połączenia i rozdziela je
+ * między kilka pętli zdarzeń (Selector). Pętle same dzielą strumień na linie,
+ * a komendy wykonują się na puli workerów przez CommandPipeline.
+ */
+public class NioTCPListener implements Listener {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int SELECT_TIMEOUT = 1000;
+    private static final byte[] NEWLINE = {'\n'};
+
+    private final int port;
+    private final CommandProcessor commandProcessor;
+    private final ExecutorService executorService;
+    private final AdmissionControl admission;
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextLoop;
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+    private volatile boolean running;
+
+    public NioTCPListener(int port, CommandProcessor commandProcessor, int eventLoopCount,
+                          ExecutorService executorService) {
+        this(port, commandProcessor, eventLoopCount, executorService, AdmissionControl.unlimited());
+    }
+
+    public NioTCPListener(int port, CommandProcessor commandProcessor, int eventLoopCount,
+                          ExecutorService executorService, AdmissionControl admission) {
+        this.port = port;
+        this.commandProcessor = commandProcessor;
+        this.executorService = executorService;
+        this.admission = admission;
+        this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+        this.nextLoop = new AtomicInteger();
+        this.running = false;
+    }
+
+    @Override
+    public void run() {
+        try {
+            startListening();
+        } catch (IOException e) {
+            System.err.println("Error w NIO TCP Listener: " + e.getMessage());
+            e.printStackTrace();
+        } catch (ClosedSelectorException e) {
+            // stop() zamknął selektor
+        }
+    }
+
+
+    private void startListening() throws IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(i);
+            eventLoops[i].start();
+        }
+
+        acceptSelector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        running = true;
+
+        System.out.println(" + TCP Listener (NIO, " + eventLoops.length + " pętli) ready");
+
+        while (running) {
+            acceptSelector.select();
+            acceptSelector.selectedKeys().clear();
+
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                System.out.println("[TCP] Client: " + channel.getRemoteAddress());
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = eventLoops[Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length)];
+                loop.register(channel);
+            }
+        }
+    }
+
+
+    @Override
+    public void stop() {
+        running = false;
+
+        try {
+            if (acceptSelector != null) {
+                acceptSelector.close();
+            }
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error zamknięty socket: " + e.getMessage());
+        }
+
+        for (EventLoop loop : eventLoops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Pętla zdarzeń z własnym selektorem i jednym buforem odczytu współdzielonym przez jej połączenia.
+     */
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final ByteBuffer readBuffer;
+        private final Queue<Runnable> tasks;
+
+        EventLoop(int index) throws IOException {
+            super("TCP-EventLoop-" + index);
+            this.selector = Selector.open();
+            this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            this.tasks = new ConcurrentLinkedQueue<>();
+            setDaemon(true);
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, channel, key));
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            interrupt();
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key.channel());
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                // Ignoruje
+            }
+        }
+
+        @Override
+        public void run() {
+            WorkerExecutors.markFrontEndThread();
+            long lastIdleCheck = System.currentTimeMillis();
+            try {
+                while (!isInterrupted()) {
+                    selector.select(SELECT_TIMEOUT);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid() || connection == null) {
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastIdleCheck >= SELECT_TIMEOUT) {
+                        lastIdleCheck = now;
+                        closeIdle(now);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    System.err.println("Error w pętli NIO: " + e.getMessage());
+                }
+            }
+        }
+
+        private void closeIdle(long now) {
+            List<Connection> idle = new ArrayList<>();
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && connection.isIdle(now)) {
+                    idle.add(connection);
+                }
+            }
+            for (Connection connection : idle) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Stan jednego połączenia: niedokończona linia, kolejka odpowiedzi do wysłania.
+     * Wszystkie metody poza enqueueResponse są wołane tylko z wątku pętli.
+     */
+    private class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final CommandPipeline pipeline;
+        private final Queue<ByteBuffer> pendingWrites;
+        private byte[] line;
+        private int lineLength;
+        // odczytane bajty czekające, aż zejdziemy poniżej MAX_PIPELINE
+        private ByteBuffer parked;
+        private int inFlight;
+        private boolean inputClosed;
+        private long lastActivity;
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.pipeline = new CommandPipeline(commandProcessor, executorService, this::enqueueResponse,
+                    admission, channel.socket().getInetAddress());
+            this.pendingWrites = new ArrayDeque<>();
+            this.line = new byte[256];
+            this.lastActivity = System.currentTimeMillis();
+        }
+
+        void onReadable(ByteBuffer buffer) {
+            buffer.clear();
+            int read;
+            try {
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+
+            if (read < 0) {
+                inputClosed = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                closeIfDone();
+                return;
+            }
+
+            lastActivity = System.currentTimeMillis();
+            buffer.flip();
+            if (!parse(buffer)) {
+                return;
+            }
+            if (buffer.hasRemaining()) {
+                // bufor odczytu jest wspólny dla pętli - resztę trzeba skopiować
+                parked = ByteBuffer.allocate(buffer.remaining());
+                parked.put(buffer);
+                parked.flip();
+            }
+            updateInterest();
+        }
+
+        /**
+         * Wysyła kolejne linie z bufora, dopóki komend w toku jest mniej niż
+         * MAX_PIPELINE. Zwraca false, gdy połączenie zostało zamknięte.
+         */
+        private boolean parse(ByteBuffer buffer) {
+            while (buffer.hasRemaining() && inFlight < ClientHandler.MAX_PIPELINE) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    dispatchLine();
+                } else if (b != '\r') {
+                    if (!append(b)) {
+                        System.err.println("[TCP] Za długa linia, zamykam połączenie");
+                        close();
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        void onWritable() {
+            try {
+                while (!pendingWrites.isEmpty()) {
+                    ByteBuffer head = pendingWrites.peek();
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        break;
+                    }
+                    pendingWrites.poll();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            updateInterest();
+            closeIfDone();
+        }
+
+        boolean isIdle(long now) {
+            return inFlight == 0 && pendingWrites.isEmpty()
+                    && now - lastActivity > ClientHandler.SESSION_IDLE_TIMEOUT;
+        }
+
+        private boolean append(byte b) {
+            if (lineLength == line.length) {
+                if (line.length >= MAX_LINE_LENGTH) {
+                    return false;
+                }
+                line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_LENGTH));
+            }
+            line[lineLength++] = b;
+            return true;
+        }
+
+        private void dispatchLine() {
+            String command = new String(line, 0, lineLength);
+            lineLength = 0;
+            System.out.println("      Komenda: " + command);
+            inFlight++;
+            pipeline.submit(command);
+        }
+
+        /**
+         * Wołane przez CommandPipeline z wątku workera - przekazuje odpowiedź do pętli.
+         */
+        private void enqueueResponse(String response) {
+            loop.execute(() -> {
+                inFlight--;
+                if (response != null && !response.isEmpty()) {
+                    System.out.println("      Odpowiedz: " + response);
+                    pendingWrites.add(ByteBuffer.wrap(commandProcessor.encodeResponse(response)));
+                    pendingWrites.add(ByteBuffer.wrap(NEWLINE));
+                }
+                onWritable();
+            });
+        }
+
+        /**
+         * Przy zbyt wielu komendach w toku przestajemy czytać (backpressure);
+         * gdy coś się zwolni, najpierw dokańczamy odłożone bajty, dopiero potem
+         * wracamy do czytania. OP_WRITE trzymamy tylko gdy jest coś do wysłania.
+         */
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            if (parked != null && inFlight < ClientHandler.MAX_PIPELINE) {
+                if (!parse(parked)) {
+                    return;
+                }
+                if (!parked.hasRemaining()) {
+                    parked = null;
+                }
+            }
+            int ops = 0;
+            if (!inputClosed && parked == null && inFlight < ClientHandler.MAX_PIPELINE) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!pendingWrites.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        private void closeIfDone() {
+            if (inputClosed && inFlight == 0 && pendingWrites.isEmpty()) {
+                close();
+            }
+        }
+
+        void close() {
+            key.cancel();
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignoruje
+        }
+    }
+}
@@ -6,20 +6,29 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 
-public class TCPListener implements Runnable {
+public class TCPListener implements Listener {
     private final int port;
     private final CommandProcessor commandProcessor;
     private final ExecutorService executorService;
+    private final ExecutorService workerExecutor;
+    private final AdmissionControl admission;
     private ServerSocket serverSocket;
     private volatile boolean running;
 
-    public TCPListener(int port, CommandProcessor commandProcessor) {
+    public TCPListener(int port, CommandProcessor commandProcessor,
+                       ExecutorService connectionExecutor, ExecutorService workerExecutor) {
+        this(port, commandProcessor, connectionExecutor, workerExecutor, AdmissionControl.unlimited());
+    }
+
+    public TCPListener(int port, CommandProcessor commandProcessor, ExecutorService connectionExecutor,
+                       ExecutorService workerExecutor, AdmissionControl admission) {
         this.port = port;
         this.commandProcessor = commandProcessor;
-        this.executorService = Executors.newCachedThreadPool();
+        this.executorService = connectionExecutor;
+        this.workerExecutor = workerExecutor;
+        this.admission = admission;
         this.running = false;
     }
 
@@ -37,6 +46,7 @@ public class TCPListener implements Runnable {
     private void startListening() throws IOException {
         serverSocket = new ServerSocket(port);
         running = true;
+        WorkerExecutors.markFrontEndThread();
 
         System.out.println(" + TCP Listener ready");
 
@@ -45,7 +55,7 @@ public class TCPListener implements Runnable {
                 Socket clientSocket = serverSocket.accept();
                 System.out.println("[TCP] Client: " + clientSocket.getRemoteSocketAddress());
 
-                ClientHandler handler = new ClientHandler(clientSocket, commandProcessor);
+                ClientHandler handler = new ClientHandler(clientSocket, commandProcessor, workerExecutor, admission);
                 executorService.submit(handler);
 
             } catch (IOException e) {
@@ -57,6 +67,7 @@ public class TCPListener implements Runnable {
     }
 
 
+    @Override
     public void stop() {
         running = false;
 
@@ -67,7 +78,5 @@ public class TCPListener implements Runnable {
         } catch (IOException e) {
             System.err.println("Error zamknięty socket: " + e.getMessage());
         }
-
-        executorService.shutdown();
     }
 }
\ No newline at end of file
@@ -2,24 +2,51 @@ package server;
 
 import command.CommandProcessor;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 
+/**
+ * Obsługuje jeden datagram. Bufor z zapytaniem pochodzi z puli - po
+ * sparsowaniu komendy kodujemy w nim odpowiedź, a po wysłaniu oddajemy go.
+ * Datagram przyjęty przez AdmissionControl zwalnia na końcu swoje miejsce.
+ */
 public class UDPClientHandler implements Runnable {
-    private static final int MAX_PACKET_SIZE = 65535;
-
-    private final DatagramPacket receivedPacket;
-    private final DatagramSocket socket;
+    private final ByteBuffer buffer;
+    private final SocketAddress client;
+    private final DatagramChannel channel;
     private final CommandProcessor commandProcessor;
+    private final BufferPool bufferPool;
+    private final AdmissionControl admission;
+    private final long admittedAt;
+
+    UDPClientHandler(ByteBuffer buffer,
+                     SocketAddress client,
+                     DatagramChannel channel,
+                     CommandProcessor commandProcessor,
+                     BufferPool bufferPool) {
+        this(buffer, client, channel, commandProcessor, bufferPool, null, 0);
+    }
 
-    public UDPClientHandler(DatagramPacket receivedPacket,
-                            DatagramSocket socket,
-                            CommandProcessor commandProcessor) {
-        this.receivedPacket = receivedPacket;
-        this.socket = socket;
+    /**
+     * @param admission kontrola przyjęcia, która przepuściła datagram w chwili admittedAt; null = bez limitu
+     */
+    UDPClientHandler(ByteBuffer buffer,
+                     SocketAddress client,
+                     DatagramChannel channel,
+                     CommandProcessor commandProcessor,
+                     BufferPool bufferPool,
+                     AdmissionControl admission,
+                     long admittedAt) {
+        this.buffer = buffer;
+        this.client = client;
+        this.channel = channel;
         this.commandProcessor = commandProcessor;
+        this.bufferPool = bufferPool;
+        this.admission = admission;
+        this.admittedAt = admittedAt;
     }
 
     @Override
@@ -29,43 +56,113 @@ public class UDPClientHandler implements Runnable {
         } catch (Exception e) {
             System.err.println("Error: " + e.getMessage());
             e.printStackTrace();
+            bufferPool.release(buffer);
+            releaseAdmission();
         }
     }
 
+    /**
+     * Odpowiedź NA bez przetwarzania - dla datagramu odrzuconego przez AdmissionControl.
+     * Wołane w wątku odbioru, więc nie zajmuje executora.
+     */
+    void reject() {
+        byte[] data = buffer.array();
+        int offset = buffer.arrayOffset() + buffer.position();
+        int length = trimEnd(data, offset, buffer.remaining());
+        int tagStart = findTag(data, offset, length);
+        try {
+            sendResponse(tagStart < 0 ? "NA" : "NA " + new String(data, tagStart, offset + length - tagStart));
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Czy datagram to komenda omijająca limity (QUIT, GET STATS), z ewentualnym " #id".
+     */
+    static boolean isExempt(ByteBuffer buffer) {
+        byte[] data = buffer.array();
+        int offset = buffer.arrayOffset() + buffer.position();
+        int length = trimEnd(data, offset, buffer.remaining());
+        int tagStart = findTag(data, offset, length);
+        if (tagStart >= 0) {
+            length = trimEnd(data, offset, tagStart - offset);
+        }
+        return length <= 16 && AdmissionControl.isExempt(new String(data, offset, length));
+    }
 
-    private void handleClient() throws Exception {
 
-        String command = new String(
-                receivedPacket.getData(),
-                0,
-                receivedPacket.getLength()
-        ).trim();
+    private void handleClient() {
+        byte[] data = buffer.array();
+        int offset = buffer.arrayOffset() + buffer.position();
+        int length = trimEnd(data, offset, buffer.remaining());
 
-        InetAddress clientAddress = receivedPacket.getAddress();
-        int clientPort = receivedPacket.getPort();
+        // proxy wyżej w drzewie dokleja " #id" - odsyłamy je z odpowiedzią
+        int tagStart = findTag(data, offset, length);
+        String tag = tagStart < 0 ? null : new String(data, tagStart, offset + length - tagStart);
+        if (tagStart >= 0) {
+            length = tagStart - offset;
+        }
 
-        System.out.println("      Komenda: " + command);
+        System.out.println("      Komenda: " + new String(data, offset, length).trim());
+
+        commandProcessor.processCommandAsync(data, offset, length).whenComplete((response, error) -> {
+            try {
+                if (response != null && !response.isEmpty()) {
+                    System.out.println("      Odpowiedz: " + response);
+                    sendResponse(tag == null ? response : response + " " + tag);
+                }
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+            } finally {
+                bufferPool.release(buffer);
+                releaseAdmission();
+            }
+        });
+    }
 
-        String response = commandProcessor.processCommand(command);
+    /**
+     * Handler nie trafił do executora - oddaje bufor i miejsce w limicie bez odpowiedzi.
+     */
+    void abandon() {
+        bufferPool.release(buffer);
+        if (admission != null) {
+            admission.cancel();
+        }
+    }
 
-        if (response != null && !response.isEmpty()) {
-            System.out.println("      Odpowiedz: " + response);
-            sendResponse(response, clientAddress, clientPort);
+    private void releaseAdmission() {
+        if (admission != null) {
+            admission.release(admittedAt);
         }
     }
 
+    private static int trimEnd(byte[] data, int offset, int length) {
+        while (length > 0 && data[offset + length - 1] <= ' ') {
+            length--;
+        }
+        return length;
+    }
 
-    private void sendResponse(String response, InetAddress address, int port)
-            throws Exception {
-        byte[] responseData = response.getBytes();
+    /**
+     * Początek ostatniego tokena, gdy ma postać "#cyfry", inaczej -1.
+     */
+    private static int findTag(byte[] data, int offset, int length) {
+        int i = offset + length - 1;
+        while (i > offset && data[i] >= '0' && data[i] <= '9') {
+            i--;
+        }
+        if (i == offset + length - 1 || data[i] != '#' || i == offset || data[i - 1] != ' ') {
+            return -1;
+        }
+        return i;
+    }
 
-        DatagramPacket responsePacket = new DatagramPacket(
-                responseData,
-                responseData.length,
-                address,
-                port
-        );
 
-        socket.send(responsePacket);
+    private void sendResponse(String response) throws IOException {
+        ByteBuffer responseData = commandProcessor.encodeResponse(response, buffer);
+        channel.send(responseData, client);
     }
 }
\ No newline at end of file
@@ -3,25 +3,53 @@ package server;
 import command.CommandProcessor;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 
-public class UDPListener implements Runnable {
+/**
+ * Odbiór UDP. Przy kilku executorach otwiera tyle samo gniazd na tym samym
+ * porcie (SO_REUSEPORT) - jądro rozdziela datagramy między nie, a każda pętla
+ * odbioru ma własny wątek, pulę buforów i executor.
+ */
+public class UDPListener implements Listener {
     private static final int MAX_PACKET_SIZE = 65535;
+    private static final int MAX_POOLED_BUFFERS = 256;
 
     private final int port;
     private final CommandProcessor commandProcessor;
-    private final ExecutorService executorService;
-    private DatagramSocket socket;
+    private final List<ExecutorService> executors;
+    private final List<DatagramChannel> channels;
+    private final AdmissionControl admission;
     private volatile boolean running;
 
-    public UDPListener(int port, CommandProcessor commandProcessor) {
+    public UDPListener(int port, CommandProcessor commandProcessor, ExecutorService executorService) {
+        this(port, commandProcessor, Collections.singletonList(executorService));
+    }
+
+    public UDPListener(int port, CommandProcessor commandProcessor, List<ExecutorService> executors) {
+        this(port, commandProcessor, executors, AdmissionControl.unlimited());
+    }
+
+    /**
+     * Datagramy odrzucone przez admission dostają NA od razu w pętli odbioru.
+     */
+    public UDPListener(int port, CommandProcessor commandProcessor, List<ExecutorService> executors,
+                       AdmissionControl admission) {
         this.port = port;
         this.commandProcessor = commandProcessor;
-        this.executorService = Executors.newCachedThreadPool();
+        this.admission = admission;
+        this.executors = new ArrayList<>(executors);
+        this.channels = Collections.synchronizedList(new ArrayList<>());
         this.running = false;
     }
 
@@ -37,28 +65,72 @@ public class UDPListener implements Runnable {
 
 
     private void startListening() throws IOException {
-        socket = new DatagramSocket(port);
+        int shards = executors.size();
+        SocketOption<Boolean> reusePort = shards > 1 ? findReusePort() : null;
+        if (shards > 1 && reusePort == null) {
+            System.err.println("SO_REUSEPORT niedostępne na tej platformie, jedna pętla odbioru UDP");
+            shards = 1;
+        }
+
         running = true;
+        for (int i = 0; i < shards; i++) {
+            DatagramChannel channel = DatagramChannel.open();
+            if (reusePort != null) {
+                channel.setOption(reusePort, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+            channels.add(channel);
+        }
 
-        System.out.println(" + UDP Listener ready");
+        System.out.println(" + UDP Listener ready" + (shards > 1 ? " (" + shards + " gniazd)" : ""));
 
-        while (running) {
-            try {
+        for (int i = 1; i < shards; i++) {
+            DatagramChannel channel = channels.get(i);
+            ExecutorService executor = executors.get(i);
+            new Thread(() -> receiveLoop(channel, executor), "UDP-Listener-" + i).start();
+        }
+        receiveLoop(channels.get(0), executors.get(0));
+    }
 
-                byte[] buffer = new byte[MAX_PACKET_SIZE];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    private void receiveLoop(DatagramChannel channel, ExecutorService executorService) {
+        WorkerExecutors.markFrontEndThread();
+        BufferPool bufferPool = new BufferPool(MAX_PACKET_SIZE, MAX_POOLED_BUFFERS);
 
-                socket.receive(packet);
-                System.out.println("[UDP] Client: " + packet.getAddress() + ":" + packet.getPort());
+        while (running) {
+            ByteBuffer buffer = bufferPool.acquire();
+            try {
+                SocketAddress client = channel.receive(buffer);
+                buffer.flip();
+                System.out.println("[UDP] Client: " + client);
+
+                boolean limited = !UDPClientHandler.isExempt(buffer);
+                InetAddress address = client instanceof InetSocketAddress ? ((InetSocketAddress) client).getAddress() : null;
+                if (limited && !admission.tryAcquire(address)) {
+                    new UDPClientHandler(buffer, client, channel, commandProcessor, bufferPool).reject();
+                    continue;
+                }
 
                 UDPClientHandler handler = new UDPClientHandler(
-                        packet,
-                        socket,
-                        commandProcessor
+                        buffer,
+                        client,
+                        channel,
+                        commandProcessor,
+                        bufferPool,
+                        limited ? admission : null,
+                        System.nanoTime()
                 );
-                executorService.submit(handler);
+                try {
+                    executorService.submit(handler);
+                } catch (RejectedExecutionException e) {
+                    // executor zamknięty albo przerwane czekanie na kolejkę - handler nie ruszy
+                    handler.abandon();
+                    if (running) {
+                        System.err.println("Error przekazania UDP pakietu: " + e.getMessage());
+                    }
+                }
 
             } catch (IOException e) {
+                bufferPool.release(buffer);
                 if (running) {
                     System.err.println("Error Odebrania UDP pakietu: " + e.getMessage());
                 }
@@ -66,14 +138,35 @@ public class UDPListener implements Runnable {
         }
     }
 
+    /**
+     * StandardSocketOptions.SO_REUSEPORT jest dopiero od Javy 9 i nie na każdym
+     * systemie - szukamy go po nazwie wśród opcji obsługiwanych przez kanał.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePort() throws IOException {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            for (SocketOption<?> option : probe.supportedOptions()) {
+                if (option.name().equals("SO_REUSEPORT") && option.type() == Boolean.class) {
+                    return (SocketOption<Boolean>) option;
+                }
+            }
+        }
+        return null;
+    }
+
 
+    @Override
     public void stop() {
         running = false;
 
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
+        synchronized (channels) {
+            for (DatagramChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Ignoruje
+                }
+            }
         }
-
-        executorService.shutdown();
     }
 }
\ No newline at end of file
@@ -0,0 +1,135 @@
+package server;
+
+import config.ExecutorMode;
+import metrics.Metrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tworzy executory według ExecutorMode:
+ * CACHED  - nieograniczona pula wątków platformowych (dotychczasowe zachowanie),
+ * BOUNDED - stała liczba wątków i ograniczona kolejka; gdy jest pełna, czeka tylko wątek frontendu
+ *           (listener, czytanie sesji) - to jest backpressure. Kontynuacje zlecane z workerów
+ *           albo z wątku Backend-IO nie mogą czekać (pula zakleszczyłaby się sama na sobie),
+ *           więc przy pełnej kolejce idą do osobnej, nieograniczonej puli przepełnienia,
+ * VIRTUAL - wątek wirtualny na zadanie (Java 21+, inaczej wraca do CACHED).
+ */
+public final class WorkerExecutors {
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final ThreadLocal<Boolean> FRONT_END = new ThreadLocal<>();
+    private static final ExecutorService OVERFLOW = Executors.newCachedThreadPool(namedThreads("Worker-Overflow"));
+    private static final boolean VIRTUAL_SUPPORTED = probeVirtual();
+
+    private WorkerExecutors() {
+    }
+
+    public static ExecutorService create(ExecutorMode mode, String name, int maxThreads, int queueSize) {
+        switch (mode) {
+            case BOUNDED:
+                return bounded(name, maxThreads, queueSize);
+            case VIRTUAL:
+                ExecutorService virtual = VIRTUAL_SUPPORTED ? virtualPerTask() : null;
+                if (virtual != null) {
+                    return virtual;
+                }
+                System.err.println("Wątki wirtualne niedostępne w tej Javie, używam CACHED dla " + name);
+                return Executors.newCachedThreadPool(namedThreads(name));
+            case CACHED:
+            default:
+                return Executors.newCachedThreadPool(namedThreads(name));
+        }
+    }
+
+    /**
+     * Czy create(VIRTUAL, ...) da wątki wirtualne - ta sama odpowiedź dla raportu i wyboru executora.
+     */
+    public static boolean isVirtualSupported() {
+        return VIRTUAL_SUPPORTED;
+    }
+
+    /**
+     * Samo istnienie metody nie wystarcza: na Javie 19/20 bez --enable-preview
+     * wywołanie rzuca UnsupportedOperationException. Tworzymy executor i zamykamy.
+     */
+    private static boolean probeVirtual() {
+        ExecutorService probe = virtualPerTask();
+        if (probe == null) {
+            return false;
+        }
+        probe.shutdown();
+        return true;
+    }
+
+    /**
+     * Oznacza bieżący wątek jako frontend: przy pełnej kolejce BOUNDED czeka na miejsce.
+     * Wołają to listenery i wątki czytające sesje, nikt inny.
+     */
+    public static void markFrontEndThread() {
+        FRONT_END.set(Boolean.TRUE);
+    }
+
+    private static ExecutorService bounded(String name, int maxThreads, int queueSize) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                maxThreads, maxThreads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                namedThreads(name),
+                new BlockWhenFull());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() przez refleksję, żeby kod kompilował się na starszej Javie.
+     */
+    private static ExecutorService virtualPerTask() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory namedThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Zamiast odrzucać zadanie: wątek frontendu czeka na miejsce w kolejce,
+     * każdy inny oddaje zadanie do puli przepełnienia i wraca od razu.
+     */
+    private static class BlockWhenFull implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("executor zamknięty");
+            }
+            if (FRONT_END.get() == null) {
+                Metrics.increment("executor.overflow");
+                OVERFLOW.execute(task);
+                return;
+            }
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("przerwano czekanie na miejsce w kolejce");
+            }
+        }
+    }
+}
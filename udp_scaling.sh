@@ -0,0 +1,43 @@
+#!/bin/bash
+# Skalowanie odbioru UDP: proxy przypięte do N rdzeni z N gniazdami (SO_REUSEPORT)
+# Użycie: ./udp_scaling.sh [wątki_klienta] [zapytania_na_wątek] [liczby_rdzeni...]
+
+G='\033[1;32m'; R='\033[0;31m'; Y='\033[1;33m'; C='\033[1;36m'; NC='\033[0m'
+
+THREADS=${1:-64}
+REQUESTS=${2:-2000}
+shift 2 2>/dev/null
+CORES=${@:-1 2 4}
+
+cleanup() { kill $(jobs -p) 2>/dev/null; echo -e "\n${G}System zatrzymany.${NC}"; }
+trap cleanup EXIT
+
+echo -e "${Y}>>> SKJ PROJEKT - SKALOWANIE UDP <<<${NC}\n"
+
+echo -ne "Kompilacja... "
+pkill -f "java.*(Proxy|Server)" 2>/dev/null
+rm -rf out logs; mkdir -p out logs
+find src -name "*.java" > s.txt; javac -d out @s.txt; rm s.txt
+[ $? -eq 0 ] && echo -e "${G}OK${NC}" || { echo -e "${R}BŁĄD${NC}"; exit 1; }
+
+java -cp out UDPServer -port 9024 -key U_Auto -value 15 > logs/u1.log 2>&1 &
+sleep 1
+
+# cache włączony, żeby mierzyć samo proxy, a nie jeden serwer UDP za nim
+for N in $CORES; do
+    if [ $N -gt $(nproc) ]; then
+        echo -e "\n${R}Pomijam $N rdzeni - maszyna ma $(nproc)${NC}"
+        continue
+    fi
+    LAST=$((N - 1))
+    echo -e "\n${C}--- RDZENIE: $N (udpShards $N) ---${NC}"
+    taskset -c 0-$LAST java -cp out Proxy -port 8020 -udpShards $N -cache 1000 -cacheTtl 60000 \
+        -server localhost 9024 > logs/proxy_$N.log 2>&1 &
+    PROXY=$!
+    sleep 2
+
+    java -cp out LoadGenerator -address localhost -port 8020 -protocol udp \
+        -threads $THREADS -requests $REQUESTS -command GET VALUE U_Auto | tail -3
+
+    kill $PROXY 2>/dev/null; wait $PROXY 2>/dev/null
+done
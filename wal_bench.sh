@@ -0,0 +1,43 @@
+#!/bin/bash
+# Przepustowość SET na serwerze TCP dla kolejnych poziomów trwałości dziennika (WAL)
+# Użycie: ./wal_bench.sh [wątki_klienta] [zapytania_na_wątek] [okno_fsync_ms]
+
+G='\033[1;32m'; R='\033[0;31m'; Y='\033[1;33m'; C='\033[1;36m'; NC='\033[0m'
+
+THREADS=${1:-32}
+REQUESTS=${2:-500}
+WINDOW=${3:-0}
+
+cleanup() { kill $(jobs -p) 2>/dev/null; echo -e "\n${G}System zatrzymany.${NC}"; }
+trap cleanup EXIT
+
+echo -e "${Y}>>> SKJ PROJEKT - TRWAŁOŚĆ SET <<<${NC}\n"
+
+echo -ne "Kompilacja... "
+pkill -f "java.*(Proxy|Server)" 2>/dev/null
+rm -rf out logs; mkdir -p out logs
+find src -name "*.java" > s.txt; javac -d out @s.txt; rm s.txt
+[ $? -eq 0 ] && echo -e "${G}OK${NC}" || { echo -e "${R}BŁĄD${NC}"; exit 1; }
+
+# "memory" to serwer bez dziennika - punkt odniesienia
+for MODE in memory none batch always; do
+    echo -e "\n${C}--- TRWAŁOŚĆ: $MODE ---${NC}"
+    WAL=""
+    [ $MODE != memory ] && WAL="-wal logs/wal_$MODE -sync $MODE -syncWindow $WINDOW"
+    java -cp out TCPServer -port 9031 -key T_Lalka -value 25 $WAL > logs/server_$MODE.log 2>&1 &
+    SERVER=$!
+    sleep 1
+
+    java -cp out LoadGenerator -address localhost -port 9031 -protocol tcp \
+        -threads $THREADS -requests $REQUESTS -command SET T_Lalka 7 | tail -3
+
+    kill $SERVER 2>/dev/null; wait $SERVER 2>/dev/null
+done
+
+# odtworzenie: dziennik z poprzedniego przebiegu czytany przez mmap przy starcie
+echo -e "\n${C}--- ODTWORZENIE (batch) ---${NC}"
+java -cp out TCPServer -port 9031 -key T_Lalka -value 25 -wal logs/wal_batch > logs/server_recovery.log 2>&1 &
+SERVER=$!
+sleep 1
+grep "Recovered" logs/server_recovery.log
+kill $SERVER 2>/dev/null; wait $SERVER 2>/dev/null